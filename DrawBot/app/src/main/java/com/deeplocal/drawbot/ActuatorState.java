@@ -0,0 +1,60 @@
+package com.deeplocal.drawbot;
+
+/**
+ * Remembers the last value commanded to an actuator such as the pen servo, so a
+ * command that wouldn't change anything is dropped instead of written out again.
+ */
+public class ActuatorState {
+
+    private boolean mKnown;
+    private int mValue;
+
+    private int mIssued;
+    private int mSuppressed;
+
+    /**
+     * Returns true if value differs from the last one and should be written
+     */
+    public synchronized boolean update(int value) {
+        if (mKnown && (value == mValue)) {
+            mSuppressed++;
+            return false;
+        }
+        mKnown = true;
+        mValue = value;
+        mIssued++;
+        return true;
+    }
+
+    /**
+     * Forget the last value, e.g. after a failed write or when something else drove the actuator
+     */
+    public synchronized void invalidate() {
+        mKnown = false;
+    }
+
+    public synchronized boolean isKnown() {
+        return mKnown;
+    }
+
+    public synchronized int getValue() {
+        return mValue;
+    }
+
+    public synchronized int getIssuedCount() {
+        return mIssued;
+    }
+
+    public synchronized int getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    public synchronized void resetCounters() {
+        mIssued = 0;
+        mSuppressed = 0;
+    }
+
+    public synchronized String formatCounters() {
+        return String.format("%d issued, %d suppressed", mIssued, mSuppressed);
+    }
+}
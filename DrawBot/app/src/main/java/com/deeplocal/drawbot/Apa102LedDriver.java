@@ -0,0 +1,27 @@
+package com.deeplocal.drawbot;
+
+import com.google.android.things.contrib.driver.apa102.Apa102;
+
+import java.io.IOException;
+
+/**
+ * APA102 LED strip on an SPI bus.
+ */
+public class Apa102LedDriver implements LedDriver {
+
+    private Apa102 mApa102;
+
+    public Apa102LedDriver(String spiBus) throws IOException {
+        mApa102 = new Apa102(spiBus, Apa102.Mode.BGR);
+    }
+
+    @Override
+    public void write(int[] colors) throws IOException {
+        mApa102.write(colors);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mApa102.close();
+    }
+}
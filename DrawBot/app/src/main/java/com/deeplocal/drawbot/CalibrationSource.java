@@ -0,0 +1,10 @@
+package com.deeplocal.drawbot;
+
+/**
+ * Where motion code gets its calibration. RobotConfig hands out its latest snapshot, and a snapshot
+ * is a fixed source of itself, so moves can run off-device without SharedPreferences.
+ */
+public interface CalibrationSource {
+
+    RobotConfig.Snapshot getSnapshot();
+}
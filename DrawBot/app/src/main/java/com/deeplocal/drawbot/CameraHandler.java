@@ -28,14 +28,18 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 import android.util.Size;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 import static android.content.Context.CAMERA_SERVICE;
 
@@ -46,13 +50,38 @@ public class CameraHandler {
     public static final int IMAGE_WIDTH = 640;
     public static final int IMAGE_HEIGHT = 480;
 
+    // YUV keeps the luminance plane uncompressed, JPEG is still supported by ImagePreprocessor
+    public static final int IMAGE_FORMAT = ImageFormat.YUV_420_888;
+
+    // keep one capture session configured between shots instead of creating one per picture
+    private static final boolean PERSISTENT_SESSION = true;
+    private static final int PREVIEW_WIDTH = 320;
+    private static final int PREVIEW_HEIGHT = 240;
+
     private static final int MAX_IMAGES = 1;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
+    private Handler mBackgroundHandler;
     /**
      * An {@link ImageReader} that handles still image capture.
      */
     private ImageReader mImageReader;
+    /**
+     * An {@link ImageReader} fed by a repeating request so AE/AWB stay converged between shots.
+     */
+    private ImageReader mPreviewReader;
+    private HandlerThread mPreviewThread;
+    private Handler mPreviewHandler;
+    private ImageReader.OnImageAvailableListener mImageAvailableListener;
+
+    // guards the persistent session hand-over, a capture asked for while it is being configured waits for it
+    private final Object mSessionLock = new Object();
+    private volatile boolean mSessionReady;
+    private boolean mSessionOpening;
+    private boolean mCapturePending;
+    private volatile boolean mAeConverged;
+    private volatile long mCaptureRequestedNanos;
+    private volatile long mLastCaptureLatencyNanos = -1;
 
     // Lazy-loaded singleton, so only one instance of the camera is created.
     private CameraHandler() {
@@ -86,11 +115,21 @@ public class CameraHandler {
         }
         String id = camIds[0];
         Log.d(TAG, "Using camera id " + id);
+        mBackgroundHandler = backgroundHandler;
+        mImageAvailableListener = imageAvailableListener;
         // Initialize the image processor
         mImageReader = ImageReader.newInstance(IMAGE_WIDTH, IMAGE_HEIGHT,
-                ImageFormat.JPEG, MAX_IMAGES);
+                IMAGE_FORMAT, MAX_IMAGES);
         mImageReader.setOnImageAvailableListener(
-                imageAvailableListener, backgroundHandler);
+                mTimedImageListener, backgroundHandler);
+        if (PERSISTENT_SESSION) {
+            mPreviewThread = new HandlerThread("CameraPreviewThread");
+            mPreviewThread.start();
+            mPreviewHandler = new Handler(mPreviewThread.getLooper());
+            mPreviewReader = ImageReader.newInstance(PREVIEW_WIDTH, PREVIEW_HEIGHT,
+                    ImageFormat.YUV_420_888, 2);
+            mPreviewReader.setOnImageAvailableListener(mPreviewDrainListener, mPreviewHandler);
+        }
         // Open the camera resource
         try {
             manager.openCamera(id, mStateCallback, backgroundHandler);
@@ -106,6 +145,9 @@ public class CameraHandler {
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             Log.d(TAG, "Opened camera.");
             mCameraDevice = cameraDevice;
+            if (PERSISTENT_SESSION) {
+                openPersistentSession();
+            }
         }
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
@@ -125,6 +167,149 @@ public class CameraHandler {
             mCameraDevice = null;
         }
     };
+    /**
+     * Records the capture latency before handing the image to the real listener
+     */
+    private final ImageReader.OnImageAvailableListener mTimedImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    if (mCaptureRequestedNanos != 0) {
+                        mLastCaptureLatencyNanos = System.nanoTime() - mCaptureRequestedNanos;
+                        mCaptureRequestedNanos = 0;
+                        Log.d(TAG, String.format("Capture latency = %d ms (persistent session = %b)",
+                                getLastCaptureLatencyMillis(), PERSISTENT_SESSION));
+                    }
+                    mImageAvailableListener.onImageAvailable(reader);
+                }
+            };
+    /**
+     * Discards preview frames, they only exist to keep the 3A routines running
+     */
+    private final ImageReader.OnImageAvailableListener mPreviewDrainListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireLatestImage();
+                    if (image != null) {
+                        image.close();
+                    }
+                }
+            };
+    /**
+     * Time from the last capture request to its image becoming available, or -1 if unknown
+     */
+    public long getLastCaptureLatencyMillis() {
+        if (mLastCaptureLatencyNanos < 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mLastCaptureLatencyNanos);
+    }
+    /**
+     * Create the long-lived session and start the repeating preview request on it
+     */
+    private void openPersistentSession() {
+        synchronized (mSessionLock) {
+            mSessionOpening = true;
+        }
+        try {
+            mCameraDevice.createCaptureSession(
+                    Arrays.asList(mImageReader.getSurface(), mPreviewReader.getSurface()),
+                    mPersistentSessionCallback,
+                    mBackgroundHandler);
+        } catch (CameraAccessException cae) {
+            Log.d(TAG, "access exception while preparing session", cae);
+            onPersistentSessionFailed();
+        }
+    }
+    /**
+     * The persistent session couldn't be set up, a capture waiting for it gets a session of its own
+     */
+    private void onPersistentSessionFailed() {
+        boolean pending;
+        synchronized (mSessionLock) {
+            mSessionOpening = false;
+            pending = mCapturePending;
+            mCapturePending = false;
+        }
+        if (pending) {
+            openSingleShotSession();
+        }
+    }
+    /**
+     * Callback handling the persistent session state changes
+     */
+    private CameraCaptureSession.StateCallback mPersistentSessionCallback =
+            new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    // The camera is already closed
+                    if (mCameraDevice == null) {
+                        return;
+                    }
+                    mCaptureSession = cameraCaptureSession;
+                    try {
+                        final CaptureRequest.Builder previewBuilder =
+                                mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                        previewBuilder.addTarget(mPreviewReader.getSurface());
+                        previewBuilder.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_AUTO);
+                        previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+                        previewBuilder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO);
+                        // preview results only feed the convergence check, keep them off the processing thread
+                        mCaptureSession.setRepeatingRequest(previewBuilder.build(), mPreviewCallback, mPreviewHandler);
+                    } catch (CameraAccessException cae) {
+                        Log.d(TAG, "camera preview exception", cae);
+                        onPersistentSessionFailed();
+                        return;
+                    } catch (IllegalStateException e) {
+                        Log.d(TAG, "camera freaked out");
+                        onPersistentSessionFailed();
+                        return;
+                    }
+                    boolean pending;
+                    synchronized (mSessionLock) {
+                        mSessionReady = true;
+                        mSessionOpening = false;
+                        pending = mCapturePending;
+                        mCapturePending = false;
+                    }
+                    Log.d(TAG, "Persistent session configured");
+                    if (pending) {
+                        triggerImageCapture();
+                    }
+                }
+                @Override
+                public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    Log.w(TAG, "Failed to configure persistent session");
+                    onPersistentSessionFailed();
+                }
+            };
+    /**
+     * Watches the repeating request until auto exposure and white balance settle
+     */
+    private final CameraCaptureSession.CaptureCallback mPreviewCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    if (mAeConverged) {
+                        return;
+                    }
+                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                    Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+                    boolean aeDone = (aeState == null)
+                            || (aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED)
+                            || (aeState == CaptureResult.CONTROL_AE_STATE_LOCKED);
+                    boolean awbDone = (awbState == null)
+                            || (awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED)
+                            || (awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED);
+                    if (aeDone && awbDone) {
+                        mAeConverged = true;
+                        Log.d(TAG, "AE/AWB converged");
+                    }
+                }
+            };
     /**
      * Begin a still image capture
      */
@@ -133,6 +318,31 @@ public class CameraHandler {
             Log.w(TAG, "Cannot capture image. Camera not initialized.");
             return;
         }
+        mCaptureRequestedNanos = System.nanoTime();
+        if (PERSISTENT_SESSION) {
+            synchronized (mSessionLock) {
+                // still being configured, onConfigured takes the shot
+                if (!mSessionReady && mSessionOpening) {
+                    mCapturePending = true;
+                    Log.d(TAG, "Capture queued until the session is configured");
+                    return;
+                }
+            }
+            // Reuse the pre-warmed session, only a single capture is needed
+            if (mSessionReady) {
+                if (!mAeConverged) {
+                    Log.d(TAG, "Capturing before AE/AWB converged");
+                }
+                triggerImageCapture();
+                return;
+            }
+        }
+        openSingleShotSession();
+    }
+    /**
+     * A session for one still capture, closed once it's taken
+     */
+    private void openSingleShotSession() {
         // Here, we create a CameraCaptureSession for capturing still images.
         try {
             mCameraDevice.createCaptureSession(
@@ -172,6 +382,7 @@ public class CameraHandler {
                     mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
             captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+            captureBuilder.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_AUTO);
             Log.d(TAG, "Capture request created.");
             mCaptureSession.capture(captureBuilder.build(), mCaptureCallback, null);
         } catch (CameraAccessException cae) {
@@ -195,13 +406,27 @@ public class CameraHandler {
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
+                    // the persistent session stays open for the next shot
+                    if (PERSISTENT_SESSION && mSessionReady) {
+                        return;
+                    }
                     session.close();
                     mCaptureSession = null;
                     Log.d(TAG, "CaptureSession closed");
+                    // that was a fallback shot, try to get the persistent session back for the next one
+                    if (PERSISTENT_SESSION && (mCameraDevice != null)) {
+                        openPersistentSession();
+                    }
                 }
             };
 
     private void closeCaptureSession() {
+        synchronized (mSessionLock) {
+            mSessionOpening = false;
+            mCapturePending = false;
+        }
+        mSessionReady = false;
+        mAeConverged = false;
         if (mCaptureSession != null) {
             try {
                 mCaptureSession.close();
@@ -220,6 +445,16 @@ public class CameraHandler {
         if (mCameraDevice != null) {
             mCameraDevice.close();
         }
+
+        // the preview surface goes with its reader, the drain listener runs on the preview thread
+        if (mPreviewReader != null) {
+            mPreviewReader.close();
+            mPreviewReader = null;
+        }
+        if (mPreviewThread != null) {
+            mPreviewThread.quitSafely();
+            mPreviewThread = null;
+        }
     }
 
     /**
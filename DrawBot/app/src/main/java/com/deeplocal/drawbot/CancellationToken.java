@@ -0,0 +1,46 @@
+package com.deeplocal.drawbot;
+
+/**
+ * Cancel flag checked by the stepping loops on every tick. cancel() is called from the UI side,
+ * markStopped() by the motion side once the robot is at rest, which gives the cancel-to-stop latency.
+ */
+public class CancellationToken {
+
+    private volatile boolean mCancelled;
+    private volatile long mCancelNanos;
+    private volatile long mLastStopLatencyNanos = -1;
+
+    public void cancel() {
+        if (!mCancelled) {
+            mCancelNanos = System.nanoTime();
+            mCancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Motion has come to rest, returns nanos since cancel() or -1 if not cancelled
+     */
+    public long markStopped() {
+        if (!mCancelled) {
+            return -1;
+        }
+        mLastStopLatencyNanos = System.nanoTime() - mCancelNanos;
+        return mLastStopLatencyNanos;
+    }
+
+    /**
+     * Cancel-to-stop time of the last cancelled run, or -1 if none
+     */
+    public long getLastStopLatencyNanos() {
+        return mLastStopLatencyNanos;
+    }
+
+    // ready for the next run, call from the motion thread before moving again
+    public void reset() {
+        mCancelled = false;
+    }
+}
@@ -0,0 +1,536 @@
+package com.deeplocal.drawbot;
+
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The robot's setup / photo / drawing state machine, run as an actor: any thread posts events to a
+ * lock-free mailbox and one thread consumes them, so state is only ever touched by that thread.
+ * Side effects go out through {@link Actions}, which keeps the machine free of hardware and Android
+ * plumbing; with a stub Actions it runs headless on a JVM, driven by synthetic events through drain().
+ *
+ * Timers (setup countdown, drawing countdown, long press, debounce) are deadlines kept by the machine
+ * itself and fire as events on the same thread.
+ */
+public class DrawBotStateMachine {
+
+    private static final String TAG = "drawbot";
+
+    private static final long DEBOUNCE_MILLIS = 333;
+    private static final long SETUP_MILLIS = 5000;        // time to enter the kiosk number after the first press
+    private static final long COUNTDOWN_MILLIS = 3000;    // between the press and the robot moving
+    private static final long LONG_PRESS_MILLIS = 1000;   // hold the button this long to photograph the next visitor
+
+    public enum State {
+        SETUP_NO_PRESSES,
+        SETUP_MORE_PRESSES,
+        NO_PHOTO,
+        PROCESSING_PHOTO,
+        WAITING_TO_DRAW,
+        COUNTDOWN,
+        DRAWING,
+        RESETTING
+    }
+
+    public enum DrawMode {
+        NOT_SET,
+        NORMAL,
+        RIGHT_TURN_TEST,
+        LEFT_TURN_TEST,
+        PRESSURE_TEST
+    }
+
+    public enum EventType {
+        BUTTON_EDGE,        // flag: pressed
+        IMAGE_READY,
+        PLAN_READY,         // flag: a plan was queued
+        DRAW_DONE,          // flag: cancelled
+        CANCEL,
+
+        // timers
+        DEBOUNCE_DONE,
+        SETUP_DONE,
+        COUNTDOWN_DONE,
+        LONG_PRESS
+    }
+
+    /**
+     * Everything the machine does to the outside world, called on the machine's thread.
+     */
+    public interface Actions {
+
+        // take a photo and plan it, PLAN_READY follows; false if a capture can't start now
+        boolean takePicture();
+
+        // draw the next waiting plan, DRAW_DONE follows; false if it couldn't be started
+        boolean startDrawing();
+
+        void cancelDrawing();
+
+        // drop the plan of the photo being processed
+        void cancelCapture();
+
+        boolean hasWaitingPlan();
+
+        void writeLED(int color);
+
+        // quick flash to acknowledge a setup press
+        void flashSetupPress();
+
+        // flash the chosen mode's number, then settle on finalColor
+        void showDrawMode(DrawMode drawMode, int finalColor);
+
+        // queue the tuning plan for a test mode
+        void queueTest(DrawMode drawMode);
+
+        void info(String text);
+    }
+
+    private static class Event {
+
+        final EventType mType;
+        final boolean mFlag;
+        final long mPostedNanos;
+
+        Event(EventType type, boolean flag, long postedNanos) {
+            mType = type;
+            mFlag = flag;
+            mPostedNanos = postedNanos;
+        }
+    }
+
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final Actions mActions;
+    private final MotionClock mClock;
+    private final ConcurrentLinkedQueue<Event> mMailbox = new ConcurrentLinkedQueue<>();
+    private Thread mThread;
+    private volatile boolean mQuit;
+
+    // machine thread only, apart from the volatile snapshots for readers
+    private volatile State mState = State.SETUP_NO_PRESSES;
+    private volatile DrawMode mDrawMode = DrawMode.NOT_SET;
+    private boolean mButtonDebouncing;
+    private boolean mButtonDown;    // level of the latest edge, bounces included
+    private boolean mLongPressPending;
+
+    // timer deadlines by event ordinal, 0 when not armed
+    private final long[] mDeadlines = new long[EVENT_TYPES.length];
+
+    // event-to-transition latency by event ordinal
+    private final long[] mEventCounts = new long[EVENT_TYPES.length];
+    private final long[] mLatencyTotals = new long[EVENT_TYPES.length];
+    private final long[] mLatencyMax = new long[EVENT_TYPES.length];
+    private long mTransitions;
+
+    public DrawBotStateMachine(Actions actions) {
+        this(actions, MotionClock.SYSTEM);
+    }
+
+    /**
+     * Timers and latencies run on clock, e.g. a virtual clock advanced by a headless driver
+     */
+    public DrawBotStateMachine(Actions actions, MotionClock clock) {
+        mActions = actions;
+        mClock = clock;
+    }
+
+    /**
+     * Consume events on a thread of its own
+     */
+    public void start() {
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!mQuit) {
+
+                    drain();
+                    if (!mMailbox.isEmpty()) {
+                        continue;
+                    }
+
+                    // sleep until the next event is posted or the next timer is due
+                    long deadline = nextDeadline();
+                    if (deadline == 0) {
+                        LockSupport.park(this);
+                    } else if (deadline - mClock.nanoTime() > 0) {
+                        LockSupport.parkNanos(this, deadline - mClock.nanoTime());
+                    }
+                }
+            }
+        }, "StateMachineThread");
+        mThread.start();
+    }
+
+    public void quit() {
+        mQuit = true;
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    public void post(EventType type) {
+        post(type, false);
+    }
+
+    /**
+     * Safe from any thread
+     */
+    public void post(EventType type, boolean flag) {
+        mMailbox.offer(new Event(type, flag, mClock.nanoTime()));
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Handle every queued event and every timer that is due. Called by the machine thread, or directly
+     * by a headless driver that never calls start().
+     */
+    public void drain() {
+
+        Event event;
+        while ((event = mMailbox.poll()) != null) {
+            dispatch(event.mType, event.mFlag, event.mPostedNanos);
+        }
+
+        // fire due timers, latency counts from the deadline
+        long now = mClock.nanoTime();
+        for (EventType type : EVENT_TYPES) {
+            long deadline = mDeadlines[type.ordinal()];
+            if ((deadline != 0) && (deadline - now <= 0)) {
+                mDeadlines[type.ordinal()] = 0;
+                dispatch(type, false, deadline);
+            }
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public DrawMode getDrawMode() {
+        return mDrawMode;
+    }
+
+    private void dispatch(EventType type, boolean flag, long postedNanos) {
+
+        State before = mState;
+
+        switch (type) {
+            case BUTTON_EDGE:
+                mButtonDown = flag;
+                if (flag) {
+                    onButtonPressed();
+                } else {
+                    onButtonReleased();
+                }
+                break;
+            case IMAGE_READY:
+                mActions.info("Photo taken");
+                break;
+            case PLAN_READY:
+                onPlanReady(flag);
+                break;
+            case DRAW_DONE:
+                onDrawDone(flag);
+                break;
+            case CANCEL:
+                cancel();
+                break;
+            case DEBOUNCE_DONE:
+                onDebounceDone();
+                break;
+            case SETUP_DONE:
+                onSetupDone();
+                break;
+            case COUNTDOWN_DONE:
+                onCountdownDone();
+                break;
+            case LONG_PRESS:
+                onLongPress();
+                break;
+        }
+
+        if (mState != before) {
+            mTransitions++;
+            Log.d(TAG, String.format("State %s -> %s on %s", before, mState, type));
+        }
+
+        long latency = mClock.nanoTime() - postedNanos;
+        int i = type.ordinal();
+        mEventCounts[i]++;
+        mLatencyTotals[i] += latency;
+        if (latency > mLatencyMax[i]) {
+            mLatencyMax[i] = latency;
+        }
+    }
+
+    private void onButtonPressed() {
+
+        if (mButtonDebouncing) {
+            Log.d(TAG, "Button debouncing");
+            return;
+        }
+        mButtonDebouncing = true;
+        arm(EventType.DEBOUNCE_DONE, DEBOUNCE_MILLIS);
+
+        mActions.info("Button press");
+
+        switch (mState) {
+
+            case SETUP_NO_PRESSES:
+
+                // on the first button press, start a 5-second countdown
+                Log.d(TAG, "Setup: 5 seconds to enter kiosk number");
+                mState = State.SETUP_MORE_PRESSES;
+                arm(EventType.SETUP_DONE, SETUP_MILLIS);
+
+                // intentional no break here to fall through to count the press
+
+            case SETUP_MORE_PRESSES:
+
+                if (mDrawMode == DrawMode.NORMAL)
+                    mDrawMode = DrawMode.RIGHT_TURN_TEST;
+                else if (mDrawMode == DrawMode.RIGHT_TURN_TEST)
+                    mDrawMode = DrawMode.LEFT_TURN_TEST;
+                else if (mDrawMode == DrawMode.LEFT_TURN_TEST)
+                    mDrawMode = DrawMode.PRESSURE_TEST;
+                else if ((mDrawMode == DrawMode.PRESSURE_TEST) || (mDrawMode == DrawMode.NOT_SET))
+                    mDrawMode = DrawMode.NORMAL;
+
+                mActions.info(String.format("Setup: draw mode = %s", mDrawMode));
+                mActions.flashSetupPress();
+                break;
+
+            case NO_PHOTO:
+
+                if (!mActions.takePicture()) {
+                    Log.d(TAG, "Still processing the last photo");
+                    break;
+                }
+                mActions.info("Taking photo");
+                mState = State.PROCESSING_PHOTO;
+                mActions.writeLED(Color.YELLOW);
+                break;
+
+            case WAITING_TO_DRAW:
+
+                if (!mActions.hasWaitingPlan()) {
+                    Log.d(TAG, "No drawing lines");
+                    cancel();
+                    break;
+                }
+
+                // decided on release or after the hold time: short draws, long photographs the next visitor
+                mLongPressPending = true;
+                arm(EventType.LONG_PRESS, LONG_PRESS_MILLIS);
+                break;
+
+            // the safety stop acts on the press itself
+            case PROCESSING_PHOTO:
+            case COUNTDOWN:
+            case DRAWING:
+                Log.d(TAG, "Canceling draw operation");
+                cancel();
+                break;
+
+            case RESETTING:
+                Log.d(TAG, String.format("Intentionally skipping mState = %s button press", mState));
+                break;
+
+            default:
+                Log.d(TAG, String.format("No button action, state = %s", mState));
+                break;
+        }
+    }
+
+    // releases only matter for a press with a plan waiting: short starts the countdown
+    private void onButtonReleased() {
+
+        // contact bounce right after the press, the level is checked again once debouncing ends
+        if (mButtonDebouncing) {
+            return;
+        }
+
+        if (!mLongPressPending) {
+            return;
+        }
+        mLongPressPending = false;
+        disarm(EventType.LONG_PRESS);
+
+        if (mState != State.WAITING_TO_DRAW) {
+            return;
+        }
+
+        // start drawing in 3 secs
+        Log.d(TAG, "Drawing in 3 secs..");
+        mState = State.COUNTDOWN;
+        mActions.writeLED(Color.MAGENTA);
+        arm(EventType.COUNTDOWN_DONE, COUNTDOWN_MILLIS);
+    }
+
+    private void onDebounceDone() {
+        mButtonDebouncing = false;
+
+        // released during the debounce window, a short press
+        if (!mButtonDown) {
+            onButtonReleased();
+        }
+    }
+
+    // only capture if the button is still down, a lost release edge counts as a short press
+    // (the waiting plan stays first in line, the new photo is processed while it draws)
+    private void onLongPress() {
+        if (!mButtonDown) {
+            onButtonReleased();
+            return;
+        }
+        if (mLongPressPending && (mState == State.WAITING_TO_DRAW) && (mDrawMode == DrawMode.NORMAL)) {
+            if (mActions.takePicture()) {
+                mActions.info("Taking next photo");
+            } else {
+                Log.d(TAG, "Not capturing, a capture is in flight or the plan queue is full");
+            }
+        }
+        mLongPressPending = false;
+    }
+
+    private void onSetupDone() {
+
+        // end setup, ready for normal use
+        if (mDrawMode == DrawMode.NORMAL) {
+            mState = State.NO_PHOTO;
+            mActions.showDrawMode(mDrawMode, Color.RED);
+        } else {
+            mActions.queueTest(mDrawMode);
+            mState = State.WAITING_TO_DRAW;
+            mActions.showDrawMode(mDrawMode, Color.GREEN);
+        }
+    }
+
+    private void onCountdownDone() {
+
+        if (mState != State.COUNTDOWN) {
+            return;
+        }
+
+        Log.d(TAG, "Begin drawing");
+        if (!mActions.startDrawing()) {
+            showReadyState();
+            return;
+        }
+        mState = State.DRAWING;
+        mActions.writeLED(Color.BLUE);
+    }
+
+    private void onPlanReady(boolean queued) {
+
+        if (!queued) {
+            mActions.info("No plan from photo");
+        }
+
+        // while drawing, the plan waits for the robot to finish
+        // (a next-visitor capture can also finish after its drawing was cancelled)
+        if ((mState == State.PROCESSING_PHOTO) || (mState == State.NO_PHOTO)) {
+            showReadyState();
+        }
+    }
+
+    private void onDrawDone(boolean cancelled) {
+
+        // cancelling already reset the state
+        if (!cancelled && (mState == State.DRAWING)) {
+            mActions.info("Drawing finished");
+            showReadyState();
+        }
+        Log.d(TAG, String.format("State machine latency: %s", formatMetrics()));
+    }
+
+    private void cancel() {
+
+        if ((mState != State.PROCESSING_PHOTO) && (mState != State.COUNTDOWN) && (mState != State.DRAWING)
+                && (mState != State.WAITING_TO_DRAW)) {
+            return;
+        }
+
+        Log.d(TAG, "Resetting");
+        disarm(EventType.COUNTDOWN_DONE);
+        disarm(EventType.LONG_PRESS);
+        mLongPressPending = false;
+        if (mState == State.PROCESSING_PHOTO) {
+            mActions.cancelCapture();
+        }
+        mActions.cancelDrawing();
+        showReadyState();
+    }
+
+    // green with a plan waiting, otherwise red for a new photo
+    private void showReadyState() {
+        if (mActions.hasWaitingPlan()) {
+            mState = State.WAITING_TO_DRAW;
+            mActions.writeLED(Color.GREEN);
+        } else {
+            mState = State.NO_PHOTO;
+            mActions.writeLED(Color.RED);
+        }
+    }
+
+    private void arm(EventType type, long delayMillis) {
+        long deadline = mClock.nanoTime() + delayMillis * 1000000;
+        mDeadlines[type.ordinal()] = (deadline == 0) ? 1 : deadline;
+    }
+
+    private void disarm(EventType type) {
+        mDeadlines[type.ordinal()] = 0;
+    }
+
+    // earliest armed deadline, 0 if none
+    private long nextDeadline() {
+        long next = 0;
+        for (long deadline : mDeadlines) {
+            if ((deadline != 0) && ((next == 0) || (deadline - next < 0))) {
+                next = deadline;
+            }
+        }
+        return next;
+    }
+
+    // metrics are plain fields of the machine thread, read them there or from a headless driver after drain()
+
+    public long getEventCount(EventType type) {
+        return mEventCounts[type.ordinal()];
+    }
+
+    /**
+     * Mean time from posting an event (or a timer's deadline) to the end of its transition
+     */
+    public long getMeanLatencyNanos(EventType type) {
+        long count = mEventCounts[type.ordinal()];
+        return (count == 0) ? 0 : mLatencyTotals[type.ordinal()] / count;
+    }
+
+    public long getMaxLatencyNanos(EventType type) {
+        return mLatencyMax[type.ordinal()];
+    }
+
+    public long getTransitionCount() {
+        return mTransitions;
+    }
+
+    public String formatMetrics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d transitions", mTransitions));
+        for (EventType type : EVENT_TYPES) {
+            if (getEventCount(type) > 0) {
+                sb.append(String.format(", %s n=%d mean=%.3f ms max=%.3f ms", type, getEventCount(type),
+                        getMeanLatencyNanos(type) / 1000000.0, getMaxLatencyNanos(type) / 1000000.0));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package com.deeplocal.drawbot;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of {@link DrawingSimulator#simulate(LinePlan)}: how long a plan takes and where the time goes.
+ * Durations are in nanoseconds.
+ */
+public class DrawingEstimate {
+
+    public final int segments;
+
+    public final long totalNanos;
+    public final long drawingNanos;     // pen-down lines and arcs
+    public final long travelNanos;      // pen-up lines
+    public final long turningNanos;     // point turns wherever they happen, with their slop steps and settle pauses
+    public final long penNanos;         // waiting on the pen servo
+
+    public final int penChanges;
+    public final int turns;
+    public final long leftSteps;
+    public final long rightSteps;
+    public final long slopSteps;
+    public final long stepNanos;        // time spent holding steps
+    public final long sleepNanos;       // fixed pauses
+
+    DrawingEstimate(int segments, long drawingNanos, long travelNanos, long turningNanos, long penNanos,
+                    int penChanges, int turns, long leftSteps, long rightSteps, long slopSteps,
+                    long stepNanos, long totalNanos) {
+        this.segments = segments;
+        this.drawingNanos = drawingNanos;
+        this.travelNanos = travelNanos;
+        this.turningNanos = turningNanos;
+        this.penNanos = penNanos;
+        this.penChanges = penChanges;
+        this.turns = turns;
+        this.leftSteps = leftSteps;
+        this.rightSteps = rightSteps;
+        this.slopSteps = slopSteps;
+        this.stepNanos = stepNanos;
+        this.totalNanos = totalNanos;
+        this.sleepNanos = totalNanos - stepNanos;
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d segments in %.1f s (drawing %.1f s, travel %.1f s, turning %.1f s, pen %.1f s); "
+                        + "%d turns, %d pen changes, steps L/R = %d/%d (%d slop), step time %.1f s, fixed sleeps %.1f s",
+                segments, seconds(totalNanos), seconds(drawingNanos), seconds(travelNanos),
+                seconds(turningNanos), seconds(penNanos), turns, penChanges, leftSteps, rightSteps,
+                slopSteps, seconds(stepNanos), seconds(sleepNanos));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
@@ -0,0 +1,201 @@
+package com.deeplocal.drawbot;
+
+import android.util.Log;
+
+/**
+ * Draws a whole LinePlan as one job on the motion thread, walking it with a cursor:
+ * each line, then the turn into the next. Replaces queueing two Runnables per line.
+ *
+ * pause() takes effect between a line and a turn, so the robot holds its pose with the pen lifted,
+ * and resume() carries on from the same segment. cancel() stops the move in progress along its ramp.
+ * Control methods are for a single thread (the state machine's); progress can be read from anywhere.
+ */
+public class DrawingExecutor {
+
+    private static final String TAG = "drawbot";
+
+    public interface Listener {
+
+        /**
+         * Called on the motion thread once the robot is at rest
+         */
+        void onDrawingFinished(boolean cancelled);
+    }
+
+    private final MotionThread mMotionThread;
+    private final LineExecutor mLineExecutor;
+    private final MovementControl mMovementControl;
+    private Listener mListener;
+
+    private final Object mPauseLock = new Object();
+    private volatile boolean mPaused;
+    private volatile boolean mRunning;
+
+    // token of the latest job, each job gets its own so an old one ramping down can't swallow a new cancel
+    private volatile CancellationToken mCancellationToken;
+
+    private volatile int mCursor;       // line being drawn
+    private volatile int mCompleted;    // lines drawn, including the turn after them
+    private volatile int mTotal;
+
+    // motion thread only: pen went up for a pause
+    private boolean mLiftedForPause;
+
+    public DrawingExecutor(MotionThread motionThread, LineExecutor lineExecutor, MovementControl movementControl) {
+        mMotionThread = motionThread;
+        mLineExecutor = lineExecutor;
+        mMovementControl = movementControl;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue the plan behind anything still running, drawn with the given corner handling.
+     * Returns false if the motion queue is full
+     */
+    public boolean start(final LinePlan plan, final LineExecutor.Mode mode) {
+
+        final CancellationToken token = new CancellationToken();
+        mCancellationToken = token;
+        mPaused = false;
+        mCursor = 0;
+        mCompleted = 0;
+        mTotal = plan.size();
+
+        return mMotionThread.post(new Runnable() {
+            @Override
+            public void run() {
+                runPlan(plan, mode, token);
+            }
+        });
+    }
+
+    public void pause() {
+        mPaused = true;
+    }
+
+    public void resume() {
+        synchronized (mPauseLock) {
+            mPaused = false;
+            mPauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the move in progress along its ramp and drop the rest of the plan
+     */
+    public void cancel() {
+
+        CancellationToken token = mCancellationToken;
+        if (token != null) {
+            token.cancel();
+        }
+        mMotionThread.clear();
+
+        synchronized (mPauseLock) {
+            mPauseLock.notifyAll();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    public int getCursor() {
+        return mCursor;
+    }
+
+    public int getCompletedLines() {
+        return mCompleted;
+    }
+
+    public int getTotalLines() {
+        return mTotal;
+    }
+
+    // fraction of lines drawn, 0 to 1
+    public float getProgress() {
+        int total = mTotal;
+        return (total == 0) ? 0 : (float) mCompleted / total;
+    }
+
+    private void runPlan(LinePlan plan, LineExecutor.Mode mode, CancellationToken token) {
+
+        mRunning = true;
+        mMovementControl.setCancellationToken(token);
+        mLineExecutor.setMode(mode);
+        mLineExecutor.prepare(plan);
+
+        int size = plan.size();
+        for (int i = 0; i < size; i++) {
+
+            mCursor = i;
+            if (!awaitResume(token)) break;
+            mLineExecutor.drawLine(plan, i);
+            mLiftedForPause = false;
+
+            if (i + 1 < size) {
+
+                if (!awaitResume(token)) break;
+
+                // the pen was lifted for the pause, an arc into the next line draws
+                // (an ordinary turn or an end-cap keeps it up)
+                if (mLiftedForPause && mLineExecutor.isArcCorner(plan, i, i + 1)) {
+                    mMovementControl.setMarkerPressure(plan.getWeight(i));
+                    mLiftedForPause = false;
+                }
+                mLineExecutor.pivot(plan, i, i + 1);
+            }
+
+            if (token.isCancelled()) break;
+            mCompleted = i + 1;
+        }
+
+        boolean cancelled = token.isCancelled();
+        if (cancelled) {
+            mMovementControl.stopAfterCancel();
+        } else {
+            mMovementControl.setMarkerPressure(0);
+        }
+        Log.d(TAG, String.format("Drawing %s after %d / %d lines", cancelled ? "cancelled" : "finished", mCompleted, size));
+
+        mRunning = false;
+        if (mListener != null) {
+            mListener.onDrawingFinished(cancelled);
+        }
+    }
+
+    /*
+     * Hold here while paused, returns false if cancelled
+     */
+    private boolean awaitResume(CancellationToken token) {
+
+        if (mPaused && !token.isCancelled()) {
+
+            mMovementControl.setMarkerPressure(0);
+            mLiftedForPause = true;
+            Log.d(TAG, String.format("Drawing paused at line %d", mCursor + 1));
+
+            synchronized (mPauseLock) {
+                while (mPaused && !token.isCancelled()) {
+                    try {
+                        mPauseLock.wait();
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "Interrupted while paused", e);
+                        token.cancel();
+                    }
+                }
+            }
+
+            Log.d(TAG, "Drawing resumed");
+        }
+
+        return !token.isCancelled();
+    }
+}
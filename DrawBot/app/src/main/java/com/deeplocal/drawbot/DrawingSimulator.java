@@ -0,0 +1,86 @@
+package com.deeplocal.drawbot;
+
+/**
+ * Estimates how long a plan takes to draw by running it through the real LineExecutor and
+ * MovementControl against recording drivers and a virtual clock. Step counts, ramp delays,
+ * slop steps and fixed pauses are exactly the ones the robot would use, but nothing sleeps,
+ * so a portrait is estimated in milliseconds.
+ */
+public class DrawingSimulator {
+
+    private final VirtualClock mClock = new VirtualClock();
+    private final RecordingStepperDriver mLeftStepper = new RecordingStepperDriver(mClock);
+    private final RecordingStepperDriver mRightStepper = new RecordingStepperDriver(mClock);
+    private final RecordingPenDriver mPen = new RecordingPenDriver(mClock);
+
+    private final MovementControl mMovementControl;
+    private final LineExecutor mLineExecutor;
+
+    public DrawingSimulator(CalibrationSource robotConfig, double drawScale, LineExecutor.Mode mode) {
+        mMovementControl = new MovementControl(robotConfig, mLeftStepper, mRightStepper, mPen, mClock);
+        PhysicalInterface physicalInterface = new PhysicalInterface(new RecordingLedDriver(mClock));
+        mLineExecutor = new LineExecutor(mMovementControl, physicalInterface, robotConfig, drawScale, mode);
+    }
+
+    /**
+     * Walk the plan the same way MainActivity.startDrawing queues it: each line, then the pivot to the next.
+     * The countdown before drawing starts is not included.
+     */
+    public synchronized DrawingEstimate simulate(LinePlan plan) {
+
+        mClock.reset();
+        mLeftStepper.reset();
+        mRightStepper.reset();
+        mPen.reset();
+
+        // the robot starts a drawing with the pen up, whatever the last simulation ended on
+        mMovementControl.setMarkerPressure(0);
+        mMovementControl.resetCounters();
+        mLineExecutor.prepare(plan);
+
+        long drawingNanos = 0, travelNanos = 0;
+
+        // turns are timed by MovementControl wherever they happen, e.g. inside a sidestep,
+        // the rest of each segment is drawing or travel
+        for (int i = 0; i < plan.size(); i++) {
+
+            long moveNanos = timeOutsideTurns(plan, i, false);
+            if (plan.getWeight(i) > 0) {
+                drawingNanos += moveNanos;
+            } else {
+                travelNanos += moveNanos;
+            }
+
+            // what is left of a corner is an arc, drawn with the pen down
+            if (i + 1 < plan.size()) {
+                drawingNanos += timeOutsideTurns(plan, i, true);
+            }
+        }
+        long turningNanos = mMovementControl.getTurnNanos();
+
+        // pen time is also part of the move or turn that waited for it
+        long penNanos = mMovementControl.getPenWaitNanos();
+        long total = mClock.nanoTime();
+
+        return new DrawingEstimate(plan.size(), drawingNanos, travelNanos, turningNanos, penNanos,
+                mMovementControl.getPenState().getIssuedCount(), mMovementControl.getTurnCount(),
+                mLeftStepper.getTotalSteps(), mRightStepper.getTotalSteps(),
+                mMovementControl.getSlopStepCount(),
+                mMovementControl.getTickNanos() + mLeftStepper.getStepNanos() + mRightStepper.getStepNanos(), total);
+    }
+
+    // draw line index, or the corner after it, and return the time not spent turning
+    private long timeOutsideTurns(LinePlan plan, int index, boolean corner) {
+
+        long start = mClock.nanoTime();
+        long turnStart = mMovementControl.getTurnNanos();
+
+        if (corner) {
+            mLineExecutor.pivot(plan, index, index + 1);
+        } else {
+            mLineExecutor.drawLine(plan, index);
+        }
+
+        return (mClock.nanoTime() - start) - (mMovementControl.getTurnNanos() - turnStart);
+    }
+}
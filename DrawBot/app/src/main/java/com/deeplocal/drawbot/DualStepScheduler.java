@@ -0,0 +1,116 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
+
+/**
+ * Steps both wheels inside one timed tick instead of holding each wheel's step in turn.
+ * The wheel with more steps advances every tick and the other is interleaved Bresenham-style,
+ * so unequal step counts finish together for differential moves.
+ */
+public class DualStepScheduler {
+
+    // coils are switched without holding, the tick does the waiting
+    private static final StepDuration NO_HOLD = new StepDuration(0, 0);
+
+    private final StepperDriver mLeftStepper;
+    private final StepperDriver mRightStepper;
+    private final MotionClock mClock;
+
+    private int mLeftSteps;
+    private int mRightSteps;
+    private int mTicks;
+    private int mTick;
+    private int mError;
+    private long mDeadline;
+
+    private long mHeldNanos;
+
+    private StepTimingRecorder mRecorder;
+
+    public DualStepScheduler(StepperDriver leftStepper, StepperDriver rightStepper, MotionClock clock) {
+        mLeftStepper = leftStepper;
+        mRightStepper = rightStepper;
+        mClock = clock;
+    }
+
+    /**
+     * Record every tick's real interval, null to stop
+     */
+    public void setRecorder(StepTimingRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    /**
+     * Start a move of leftSteps and rightSteps, which then takes max(leftSteps, rightSteps) ticks
+     */
+    public void begin(int leftSteps, int rightSteps) {
+        mLeftSteps = Math.max(leftSteps, 0);
+        mRightSteps = Math.max(rightSteps, 0);
+        mTicks = Math.max(mLeftSteps, mRightSteps);
+        mTick = 0;
+        mError = mTicks / 2;
+        mDeadline = mClock.nanoTime();
+
+        if ((mRecorder != null) && (mTicks > 0)) {
+            mRecorder.beginMove(mDeadline);
+        }
+    }
+
+    public int getTickCount() {
+        return mTicks;
+    }
+
+    public boolean hasNext() {
+        return mTick < mTicks;
+    }
+
+    /**
+     * Advance whichever coil sequences are due this tick, then hold until the tick is over
+     */
+    public void tick(long holdNanos) {
+
+        boolean stepLeft, stepRight;
+
+        if (mLeftSteps >= mRightSteps) {
+            stepLeft = true;
+            mError -= mRightSteps;
+            stepRight = mError < 0;
+        } else {
+            stepRight = true;
+            mError -= mLeftSteps;
+            stepLeft = mError < 0;
+        }
+        if (mError < 0) {
+            mError += mTicks;
+        }
+
+        if (stepLeft) {
+            mLeftStepper.performStep(NO_HOLD);
+        }
+        if (stepRight) {
+            mRightStepper.performStep(NO_HOLD);
+        }
+        mTick++;
+
+        // hold to a deadline so the coil writes come out of the tick, but never try to catch up on a late tick
+        long now = mClock.nanoTime();
+        mDeadline = Math.max(mDeadline, now - holdNanos) + holdNanos;
+        mClock.sleepNanos(mDeadline - now);
+        mHeldNanos += holdNanos;
+
+        if (mRecorder != null) {
+            mRecorder.recordStep(holdNanos, mClock.nanoTime());
+        }
+    }
+
+    /**
+     * Total hold time of every tick since the last reset
+     */
+    public long getHeldNanos() {
+        return mHeldNanos;
+    }
+
+    public void resetCounters() {
+        mHeldNanos = 0;
+    }
+}
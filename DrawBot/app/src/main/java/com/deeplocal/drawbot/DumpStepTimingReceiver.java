@@ -0,0 +1,20 @@
+package com.deeplocal.drawbot;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+public class DumpStepTimingReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+
+        // get file path for original intent
+        String outFilePath = intent.getStringExtra(DumpStepTimingService.FILE_PATH);
+
+        // create intent with file path and start service
+        Intent serviceIntent = new Intent(context, DumpStepTimingService.class);
+        serviceIntent.putExtra(DumpStepTimingService.FILE_PATH, outFilePath);
+        context.startService(serviceIntent);
+    }
+}
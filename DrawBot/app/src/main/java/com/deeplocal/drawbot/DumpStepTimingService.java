@@ -0,0 +1,45 @@
+package com.deeplocal.drawbot;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes the step timing recorded so far, see StepTimingRecorder
+ */
+public class DumpStepTimingService extends IntentService {
+
+    public static final String FILE_PATH = "file_path";
+
+    public DumpStepTimingService() {
+        super("DumpStepTimingService");
+    }
+
+    @Override
+    protected void onHandleIntent(@Nullable Intent intent) {
+
+        // get file path from intent
+        String filePath = intent.getStringExtra(FILE_PATH);
+
+        // if not extra on the intent, assume step-timing.txt
+        if (filePath == null) {
+            filePath = "step-timing.txt";
+        }
+
+        // if path not provided, assume app file directory
+        if (!filePath.contains(File.separator)) {
+            filePath = new File(getApplicationContext().getExternalFilesDir(null), filePath).getAbsolutePath();
+        }
+
+        try {
+            StepTimingRecorder.getInstance().dump(new File(filePath));
+            Log.d(MainActivity.TAG, String.format("Dumped step timing to %s", filePath));
+        } catch (IOException e) {
+            Log.e(MainActivity.TAG, "Could not write step timing", e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.deeplocal.drawbot;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Holds the face CascadeClassifier so the cascade is extracted and parsed once
+ * instead of on every photo.
+ */
+public class FaceClassifierCache {
+
+    private static final String TAG = FaceClassifierCache.class.getSimpleName();
+
+    private volatile CascadeClassifier mClassifier;
+
+    private FaceClassifierCache() {
+    }
+
+    private static class InstanceHolder {
+        private static FaceClassifierCache mCache = new FaceClassifierCache();
+    }
+
+    public static FaceClassifierCache getInstance() {
+        return InstanceHolder.mCache;
+    }
+
+    /**
+     * Load the default cascade on the given background handler so the first photo doesn't pay for it
+     */
+    public void preload(final Context context, Handler backgroundHandler) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                get(context);
+            }
+        });
+    }
+
+    /**
+     * Return the cached classifier, loading the default cascade if nothing is cached yet
+     */
+    public CascadeClassifier get(Context context) {
+
+        CascadeClassifier classifier = mClassifier;
+        if (classifier != null) {
+            return classifier;
+        }
+
+        synchronized (this) {
+            if (mClassifier == null) {
+                long start = System.currentTimeMillis();
+                mClassifier = Utilities.loadFaceClassifier(context);
+                Log.d(TAG, String.format("Loaded face classifier in %d ms", System.currentTimeMillis() - start));
+            }
+            return mClassifier;
+        }
+    }
+
+    /**
+     * Replace the cached classifier, photos processed afterwards use the new one
+     * @param classifier loaded, non-empty classifier
+     */
+    public void swap(CascadeClassifier classifier) {
+        if ((classifier == null) || classifier.empty()) {
+            Log.w(TAG, "Ignoring empty face classifier");
+            return;
+        }
+        mClassifier = classifier;
+    }
+
+    /**
+     * Load a cascade from a raw resource and swap it in
+     * @param rawResId raw resource id of the cascade xml
+     */
+    public void reload(Context context, int rawResId) {
+        swap(Utilities.loadCascadeClassifier(context, rawResId));
+    }
+}
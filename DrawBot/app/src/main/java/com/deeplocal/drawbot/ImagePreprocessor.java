@@ -16,84 +16,167 @@
 package com.deeplocal.drawbot;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.media.Image;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
 
 import junit.framework.Assert;
 
-import java.io.IOException;
-import java.io.InputStream;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
 import java.nio.ByteBuffer;
 
 /**
- * Class that process an Image and extracts a Bitmap in a format appropriate for
- * the TensorFlow model.
+ * Class that processes an Image and extracts a square grayscale Mat
+ * ready for face detection. Handles both YUV_420_888 and JPEG captures.
  */
 public class ImagePreprocessor {
 
-    private static final boolean SAVE_PREVIEW_BITMAP = true;
+    private static final String TAG = "ImagePreprocessor";
+
+    private static final boolean SAVE_PREVIEW_IMAGE = true;
 
-    private Bitmap rgbFrameBitmap;
-    private Bitmap croppedBitmap;
     private Context mContext;
 
+    // reused between frames so a capture doesn't allocate new buffers
+    private byte[] mEncodedBytes;
+    private Mat mEncodedMat;
+    private byte[] mLumaBytes;
+    private Mat mLumaMat;
+    private Mat mGrayFrame;
+
+    private Handler mDebugHandler;
+
     public ImagePreprocessor(Context c) {
         mContext = c;
-        this.croppedBitmap = Bitmap.createBitmap(Helper.IMAGE_SIZE, Helper.IMAGE_SIZE,
-                Config.ARGB_8888);
-        this.rgbFrameBitmap = Bitmap.createBitmap(CameraHandler.IMAGE_WIDTH,
-                CameraHandler.IMAGE_HEIGHT, Config.ARGB_8888);
+        mEncodedMat = new Mat();
+        mLumaMat = new Mat();
+        mGrayFrame = new Mat();
+
+        if (SAVE_PREVIEW_IMAGE) {
+            HandlerThread debugThread = new HandlerThread("PreviewSaverThread");
+            debugThread.start();
+            mDebugHandler = new Handler(debugThread.getLooper());
+        }
     }
 
-    public Bitmap preprocessImage(final Image image) {
+    /**
+     * Decode the captured frame straight into a grayscale Mat, cropped to the center square
+     * and scaled to {@link Helper#IMAGE_SIZE}. The returned Mat is reused by the next call.
+     */
+    public Mat preprocessImage(final Image image) {
         if (image == null) {
             return null;
         }
 
-        Assert.assertEquals("Invalid size width", rgbFrameBitmap.getWidth(), image.getWidth());
-        Assert.assertEquals("Invalid size height", rgbFrameBitmap.getHeight(), image.getHeight());
+        Assert.assertEquals("Invalid size width", CameraHandler.IMAGE_WIDTH, image.getWidth());
+        Assert.assertEquals("Invalid size height", CameraHandler.IMAGE_HEIGHT, image.getHeight());
 
-        if (croppedBitmap != null && rgbFrameBitmap != null) {
-            ByteBuffer bb = image.getPlanes()[0].getBuffer();
-            rgbFrameBitmap = BitmapFactory.decodeStream(new ByteBufferBackedInputStream(bb));
-            Helper.cropAndRescaleBitmap(rgbFrameBitmap, croppedBitmap, 0);
+        boolean decoded;
+        if (image.getFormat() == ImageFormat.YUV_420_888) {
+            decoded = copyLuminance(image);
+        } else {
+            decoded = decodeJpeg(image);
         }
 
         image.close();
 
+        if (!decoded) {
+            Log.w(TAG, "Could not decode camera image");
+            return null;
+        }
+
         // For debugging
-        if (SAVE_PREVIEW_BITMAP) {
-            Helper.saveBitmap(mContext, croppedBitmap);
+        if (SAVE_PREVIEW_IMAGE) {
+            savePreview(mGrayFrame);
         }
-        return croppedBitmap;
+        return mGrayFrame;
     }
 
-    private static class ByteBufferBackedInputStream extends InputStream {
+    /**
+     * Bulk copy the Y plane of a YUV_420_888 frame into a reusable Mat and crop/scale it
+     * without leaving the luminance domain.
+     */
+    private boolean copyLuminance(Image image) {
+
+        Image.Plane yPlane = image.getPlanes()[0];
+        ByteBuffer bb = yPlane.getBuffer();
+        int rowStride = yPlane.getRowStride();
+        int length = bb.remaining();
+
+        // the Y plane always has a pixel stride of 1, so rows only need padding skipped
+        if ((mLumaBytes == null) || (mLumaBytes.length < rowStride * image.getHeight())) {
+            mLumaBytes = new byte[rowStride * image.getHeight()];
+            mLumaMat.create(image.getHeight(), rowStride, CvType.CV_8UC1);
+        }
+        bb.get(mLumaBytes, 0, Math.min(length, mLumaBytes.length));
+        mLumaMat.put(0, 0, mLumaBytes);
 
-        ByteBuffer buf;
+        Mat luma = mLumaMat.colRange(0, image.getWidth());
+        cropAndRescale(luma, mGrayFrame);
+        luma.release();
+        return true;
+    }
 
-        public ByteBufferBackedInputStream(ByteBuffer buf) {
-            this.buf = buf;
-        }
+    /**
+     * Copy the jpeg bytes into a reusable buffer and decode them as grayscale.
+     */
+    private boolean decodeJpeg(Image image) {
 
-        public int read() throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
-            }
-            return buf.get() & 0xFF;
+        ByteBuffer bb = image.getPlanes()[0].getBuffer();
+        int length = bb.remaining();
+        if ((mEncodedBytes == null) || (mEncodedBytes.length < length)) {
+            mEncodedBytes = new byte[length];
+            mEncodedMat.create(length, 1, CvType.CV_8UC1);
+        }
+        bb.get(mEncodedBytes, 0, length);
+        mEncodedMat.put(0, 0, mEncodedBytes);
+
+        Mat encoded = mEncodedMat.rowRange(0, length);
+        Mat decoded = Highgui.imdecode(encoded, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+        encoded.release();
+        if (decoded.empty()) {
+            return false;
         }
 
-        public int read(byte[] bytes, int off, int len)
-                throws IOException {
-            if (!buf.hasRemaining()) {
-                return -1;
-            }
+        cropAndRescale(decoded, mGrayFrame);
+        decoded.release();
+        return true;
+    }
 
-            len = Math.min(len, buf.remaining());
-            buf.get(bytes, off, len);
-            return len;
-        }
+    /**
+     * Only keep the center square out of the original rectangle and scale it to the output size.
+     */
+    private static void cropAndRescale(Mat src, Mat dst) {
+        int minDim = Math.min(src.cols(), src.rows());
+        Rect square = new Rect((src.cols() - minDim) / 2, (src.rows() - minDim) / 2, minDim, minDim);
+        Mat cropped = src.submat(square);
+        Imgproc.resize(cropped, dst, new Size(Helper.IMAGE_SIZE, Helper.IMAGE_SIZE), 0, 0, Imgproc.INTER_AREA);
+        cropped.release();
+    }
+
+    /**
+     * Writes a copy of the frame to disk for analysis without holding up processing.
+     */
+    private void savePreview(Mat frame) {
+        final Mat copy = frame.clone();
+        final File file = new File(mContext.getCacheDir(), "preview.png");
+        mDebugHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!Highgui.imwrite(file.getAbsolutePath(), copy)) {
+                    Log.w(TAG, "Could not save image for debugging.");
+                }
+                copy.release();
+            }
+        });
     }
-}
\ No newline at end of file
+}
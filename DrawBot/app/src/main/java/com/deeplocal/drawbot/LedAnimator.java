@@ -0,0 +1,161 @@
+package com.deeplocal.drawbot;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays LedPatterns on their own thread so no caller ever sleeps on an LED effect or waits on SPI.
+ * play() only swaps in the pattern and returns; the newest pattern replaces whatever is running.
+ * A colour that is already showing is not written to the strip again, and playSolid() drops a
+ * colour that is already the latest pattern without allocating or waking the thread.
+ */
+public class LedAnimator extends Thread {
+
+    private static final String TAG = "drawbot";
+
+    private final LedDriver mLedDriver;
+    private final int[] mFrame = new int[1];
+
+    // latest pattern played, the LED thread starts it once it sees a new one
+    private final AtomicReference<LedPattern> mLatest = new AtomicReference<>();
+    private volatile boolean mQuit;
+
+    // LED thread only
+    private boolean mHasShown;
+    private int mShownColor;
+
+    private volatile int mWriteCount;
+    private volatile int mSkippedCount;
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    public LedAnimator(LedDriver ledDriver) {
+        super("LedAnimator");
+        mLedDriver = ledDriver;
+        setDaemon(true);
+    }
+
+    /**
+     * Start pattern from its first frame, returns at once. Patterns are told apart by identity,
+     * so replaying one means passing a new instance.
+     */
+    public void play(LedPattern pattern) {
+        mLatest.set(pattern);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Play a solid colour unless it already is the latest pattern, returns false for such a no-op.
+     * Safe from any thread.
+     */
+    public boolean playSolid(int color) {
+        while (true) {
+            LedPattern latest = mLatest.get();
+            if ((latest != null) && latest.isSolid(color)) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+            if (mLatest.compareAndSet(latest, LedPattern.solid(color))) {
+                LockSupport.unpark(this);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Stop once the last played pattern's current frame is written
+     */
+    public void quit() {
+        mQuit = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Write a colour on the calling thread, for an animator that was never started (off-device)
+     */
+    public void showNow(int color) {
+        show(color);
+    }
+
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    // dropped by playSolid() and skipped on the LED thread
+    public int getSkippedCount() {
+        return mSkippedCount + mDroppedCount.get();
+    }
+
+    @Override
+    public void run() {
+
+        // cosmetic, never competes with the motion thread
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        LedPattern taken = null;
+        LedPattern pattern = null;
+        int frame = 0;
+        long deadline = 0;
+
+        while (true) {
+
+            LedPattern latest = mLatest.get();
+            if (latest != taken) {
+                taken = latest;
+                pattern = latest;
+                frame = 0;
+                deadline = System.nanoTime();
+            } else if (mQuit) {
+                break;
+            }
+
+            if ((pattern == null) || (frame >= pattern.size())) {
+                pattern = null;
+                LockSupport.park(this);
+                continue;
+            }
+
+            long now = System.nanoTime();
+            if (now - deadline < 0) {
+                LockSupport.parkNanos(this, deadline - now);
+                continue;
+            }
+
+            show(pattern.getColor(frame));
+            long duration = pattern.getDurationNanos(frame);
+            frame++;
+
+            if (duration == 0) {
+                pattern = null;
+            } else {
+                // a late frame still shows for its full duration and pushes the rest back
+                deadline = Math.max(deadline, now) + duration;
+            }
+        }
+    }
+
+    private void show(int color) {
+
+        if (mHasShown && (color == mShownColor)) {
+            mSkippedCount++;
+            return;
+        }
+        if (mLedDriver == null) {
+            return;
+        }
+
+        mFrame[0] = color;
+        try {
+            mLedDriver.write(mFrame);
+            mHasShown = true;
+            mShownColor = color;
+            mWriteCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing color to LED strip", e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.deeplocal.drawbot;
+
+import java.io.IOException;
+
+/**
+ * The status LED strip.
+ */
+public interface LedDriver {
+
+    void write(int[] colors) throws IOException;
+
+    void close() throws IOException;
+}
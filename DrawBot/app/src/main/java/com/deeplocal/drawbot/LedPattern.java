@@ -0,0 +1,101 @@
+package com.deeplocal.drawbot;
+
+import android.graphics.Color;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A declarative LED effect: a list of colour frames, each held for its duration, built with
+ * hold(), blink() and pulse(). The last frame stays on until the next pattern is played.
+ * Don't change a pattern after handing it to LedAnimator.play().
+ */
+public class LedPattern {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    // brightness steps on each side of a pulse
+    private static final int PULSE_STEPS = 16;
+
+    private int[] mColors = new int[DEFAULT_CAPACITY];
+    private long[] mNanos = new long[DEFAULT_CAPACITY];
+    private int mSize;
+
+    /**
+     * A single colour held until the next pattern
+     */
+    public static LedPattern solid(int color) {
+        return new LedPattern().then(color);
+    }
+
+    public LedPattern hold(int color, int durationMs) {
+        add(color, TimeUnit.MILLISECONDS.toNanos(Math.max(durationMs, 1)));
+        return this;
+    }
+
+    public LedPattern blink(int onColor, int onMs, int offColor, int offMs, int times) {
+        for (int i = 0; i < times; i++) {
+            hold(onColor, onMs);
+            hold(offColor, offMs);
+        }
+        return this;
+    }
+
+    /**
+     * Fade up to color and back down to black, times over, each pulse taking periodMs
+     */
+    public LedPattern pulse(int color, int periodMs, int times) {
+        int stepMs = Math.max(periodMs / (2 * PULSE_STEPS), 1);
+        for (int i = 0; i < times; i++) {
+            for (int s = 1; s <= PULSE_STEPS; s++) {
+                hold(scale(color, s), stepMs);
+            }
+            for (int s = PULSE_STEPS - 1; s >= 0; s--) {
+                hold(scale(color, s), stepMs);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Finish on color and stay there
+     */
+    public LedPattern then(int color) {
+        add(color, 0);
+        return this;
+    }
+
+    // a single colour held until the next pattern, as made by solid()
+    boolean isSolid(int color) {
+        return (mSize == 1) && (mNanos[0] == 0) && (mColors[0] == color);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getColor(int frame) {
+        return mColors[frame];
+    }
+
+    // 0 for a closing frame that holds until the next pattern
+    public long getDurationNanos(int frame) {
+        return mNanos[frame];
+    }
+
+    private void add(int color, long nanos) {
+        if (mSize == mColors.length) {
+            mColors = Arrays.copyOf(mColors, mSize * 2);
+            mNanos = Arrays.copyOf(mNanos, mSize * 2);
+        }
+        mColors[mSize] = color;
+        mNanos[mSize] = nanos;
+        mSize++;
+    }
+
+    private static int scale(int color, int step) {
+        return Color.rgb(Color.red(color) * step / PULSE_STEPS,
+                Color.green(color) * step / PULSE_STEPS,
+                Color.blue(color) * step / PULSE_STEPS);
+    }
+}
@@ -0,0 +1,156 @@
+package com.deeplocal.drawbot;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * Auto brightness / contrast from a single histogram.
+ *
+ * A levels shift (alpha * value + beta, saturated) never reorders gray values, so the median of
+ * the adjusted image is just the shifted median of the original. The alpha/beta search therefore
+ * only has to look at one number, and the chosen levels come out as a lookup table.
+ */
+public class LevelsEngine {
+
+    private static final String TAG = "abc";
+
+    public static final int LOWER_TARGET = 55;
+    public static final int UPPER_TARGET = 200;
+    private static final int MAX_ITERS = 25;
+
+    private final int[] mHistogram = new int[256];
+    private final byte[] mLutBytes = new byte[256];
+    private byte[] mPixels;
+
+    private long mPixelCount;
+    private double mAlpha = 1;
+    private int mBeta = 0;
+
+    /**
+     * Build the histogram of a CV_8UC1 image with a single bulk read
+     */
+    public void computeHistogram(Mat grayMat) {
+
+        int count = (int) grayMat.total();
+        mPixels = Utilities.readGrayPixels(grayMat, mPixels);
+
+        Arrays.fill(mHistogram, 0);
+        for (int i = 0; i < count; i++) {
+            mHistogram[mPixels[i] & 0xFF]++;
+        }
+        mPixelCount = grayMat.rows() * grayMat.cols();
+    }
+
+    /**
+     * Histogram from the last {@link #computeHistogram(Mat)} call
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Median of the last histogram, lower median of the pixel values
+     */
+    public int getMedian() {
+
+        long t = mPixelCount / 2;
+        long total = 0;
+        for (int bin = 0; bin < mHistogram.length; bin++) {
+            int val = mHistogram[bin];
+            if ((total <= t) && (total + val >= t)) {
+                return bin;
+            }
+            total += val;
+        }
+        return -1;
+    }
+
+    /**
+     * Pick alpha and beta so the adjusted median lands between the lower and upper target.
+     * Walks the same alpha/beta steps as the original iterative search, but on the median alone.
+     */
+    public void solve(double alpha, int beta, boolean autoLevels) {
+
+        int median = getMedian();
+
+        int numIters = 0, bestMedian = levels(median, alpha, beta), bestBeta = beta;
+        double bestAlpha = alpha;
+        while (autoLevels && ((bestMedian < LOWER_TARGET) || (bestMedian > UPPER_TARGET))) {
+
+            int shifted = levels(median, alpha, beta);
+            if (shifted < LOWER_TARGET) {
+
+                if (shifted > bestMedian) {
+                    bestMedian = shifted;
+                    bestAlpha = alpha;
+                    bestBeta = beta;
+                }
+
+                if (beta < 25) {
+                    beta += 5;
+                } else {
+                    alpha += 0.2;
+                    beta = 0;
+                }
+            } else if (shifted > UPPER_TARGET) {
+
+                if (shifted < bestMedian) {
+                    bestMedian = shifted;
+                    bestAlpha = alpha;
+                    bestBeta = beta;
+                }
+
+                if (beta > 0) {
+                    beta -= 5;
+                } else {
+                    alpha -= 0.2;
+                    beta = 25;
+                }
+            } else {
+                Log.d(TAG, "Reached target median");
+                break;
+            }
+
+            // check if reached max number of iterations
+            numIters++;
+            if (numIters > MAX_ITERS) {
+                Log.d(TAG, String.format("Using best alpha = %f, beta = %d", bestAlpha, bestBeta));
+                alpha = bestAlpha;
+                beta = bestBeta;
+                break;
+            }
+        }
+
+        mAlpha = alpha;
+        mBeta = beta;
+    }
+
+    public double getAlpha() {
+        return mAlpha;
+    }
+
+    public int getBeta() {
+        return mBeta;
+    }
+
+    /**
+     * Lookup table for the solved levels, entry i is the adjusted value of gray level i
+     */
+    public byte[] getLevelsTable() {
+        for (int i = 0; i < mLutBytes.length; i++) {
+            mLutBytes[i] = (byte) levels(i, mAlpha, mBeta);
+        }
+        return mLutBytes;
+    }
+
+    // same rounding and saturation as Mat.convertTo
+    static int levels(int value, double alpha, int beta) {
+        double v = Math.rint(alpha * value + beta);
+        if (v < 0) return 0;
+        if (v > 255) return 255;
+        return (int) v;
+    }
+}
@@ -3,10 +3,7 @@ package com.deeplocal.drawbot;
 import android.content.Context;
 import android.util.Log;
 
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfFloat;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfRect;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
@@ -14,18 +11,30 @@ import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
 
-import java.util.ArrayList;
 
 public class LineAlgorithm {
 
     private static final String TAG = "abc";
 
+    // default height of the face image handed to the line algorithm
+    public static final int DEFAULT_FACE_ROWS = 40;
+
+    // pixel buffer reused by getCopicLines
+    private static byte[] sPixels;
+
     /*
      * Crop image to only show head.
      */
     public static Mat cropFace(Context context, Mat grayMat) {
+        return cropFace(context, grayMat, DEFAULT_FACE_ROWS);
+    }
 
-        CascadeClassifier faceClassifier = Utilities.loadFaceClassifier(context);
+    /*
+     * Crop image to only show head, scaled to the given number of rows.
+     */
+    public static Mat cropFace(Context context, Mat grayMat, int numDesiredRows) {
+
+        CascadeClassifier faceClassifier = FaceClassifierCache.getInstance().get(context);
 
         // detect faces and log
         MatOfRect faces = new MatOfRect();
@@ -75,8 +84,7 @@ public class LineAlgorithm {
         Imgproc.equalizeHist(croppedMat, eqFaceMat);
 
         // scale image
-        double numDesiredRows = 40;
-        double scaleFactor = numDesiredRows / croppedMat.rows();
+        double scaleFactor = (double) numDesiredRows / croppedMat.rows();
         Log.d(TAG, String.format("scaleFactor = %f", scaleFactor));
         int newRows = (int) Math.floor(croppedMat.rows() * scaleFactor);
         int newCols = (int) Math.floor(croppedMat.cols() * scaleFactor);
@@ -89,56 +97,33 @@ public class LineAlgorithm {
     }
 
 
-    public static int getMedian(Mat mat) {
-
-        ArrayList<Mat> listOfMat = new ArrayList<>();
-        listOfMat.add(mat);
-        MatOfInt channels = new MatOfInt(0);
-        Mat mask = new Mat();
-        Mat hist = new Mat(256, 1, CvType.CV_8UC1);
-        MatOfInt histSize = new MatOfInt(256);
-        MatOfFloat ranges = new MatOfFloat(0, 256);
-
-        Imgproc.calcHist(listOfMat, channels, mask, hist, histSize, ranges);
-
-        double t = mat.rows() * mat.cols() / 2;
-        double total = 0;
-        int med = -1;
-        for (int row = 0; row < hist.rows(); row++) {
-            double val = hist.get(row, 0)[0];
-            if ((total <= t) && (total + val >= t)) {
-                med = row;
-                break;
-            }
-            total += val;
-        }
-
-//        Log.d(TAG, String.format("getMedian() = %d", med));
-
-        return med;
-    }
-
-    public static ArrayList<Line> getCopicLines(Mat faceMat) {
+    /*
+     * Works for any image size, pixels are read once and binned as primitives.
+     * Neighbouring pixels in a row that share a bin become a single line.
+     */
+    public static synchronized LinePlan getCopicLines(Mat faceMat) {
 
 //        Log.d(TAG, String.format("fyi faceMat has %d rows and %d columns", faceMat.rows(), faceMat.cols()));
 
-        double maxVal = Float.NEGATIVE_INFINITY;
-        double minVal = Float.POSITIVE_INFINITY;
+        int rows = faceMat.rows();
+        int cols = faceMat.cols();
+        sPixels = Utilities.readGrayPixels(faceMat, sPixels);
+        byte[] pixels = sPixels;
 
-        ArrayList<Line> lineList = new ArrayList<>();
+        int maxVal = 0;
+        int minVal = 255;
+
+        LinePlan lineList = new LinePlan(rows * 4);
 
         // pre-process to get max & min
-        for (int row = 0; row < faceMat.rows(); row++) {
-            for (int col = 0; col < faceMat.cols(); col++) {
+        for (int i = 0; i < rows * cols; i++) {
 
-                // get gray value [0..255]
-                double[] pixel = faceMat.get(row, col);
-                double val = pixel[0];
+            // get gray value [0..255]
+            int val = pixels[i] & 0xFF;
 
-                // update image max & min
-                minVal = Math.min(minVal, val);
-                maxVal = Math.max(maxVal, val);
-            }
+            // update image max & min
+            if (val < minVal) minVal = val;
+            if (val > maxVal) maxVal = val;
         }
 
         /*
@@ -157,7 +142,7 @@ public class LineAlgorithm {
 
 
         // for each pixel
-        for (int row = 0; row < faceMat.rows(); row++) {
+        for (int row = 0; row < rows; row++) {
 
             int startCol;
             int endCol;
@@ -166,27 +151,28 @@ public class LineAlgorithm {
             // move left to right for even numbered rows
             if (row % 2 == 0) {
                 startCol = 0;
-                endCol = faceMat.cols();
+                endCol = cols;
                 incrementCol = 1;
             }
             else {  // move right to left for odd numbered rows
-                startCol = faceMat.cols() - 1;
+                startCol = cols - 1;
                 endCol = -1;
                 incrementCol = -1;
             }
 
             // will be used to generate the end cap line
             int lastEndX = 0;
+            int rowOffset = row * cols;
+
+            // consecutive pixels in the same bin are merged into one run
+            int runStartX = 0;
+            int runWeight = -1;
 
             // this loop ~should~ run forward for even rows, and backwards for odd rows
             for (int col = startCol; col != endCol; col += incrementCol) {
 
-                // but just to make sure
-//                Log.d(TAG, String.format("fyi getCopicLines() is procressing row %d, col %d", row, col));
-
                 // get gray value [0..255]
-                double[] pixel = faceMat.get(row, col);
-                double val = pixel[0];
+                int val = pixels[rowOffset + col] & 0xFF;
 
                 // calculate which bin
                 int bin = -1;
@@ -201,11 +187,8 @@ public class LineAlgorithm {
                     bin = 0;
                 }
 
-                // make a line
-                int lineWeight = bin;
-
-                double startX;
-                double endX;
+                int startX;
+                int endX;
                 if (incrementCol < 0) { // moving Right to Left (backwards)
                     startX = col + 1;
                     endX = col;
@@ -214,29 +197,29 @@ public class LineAlgorithm {
                     endX = col+1;
                 }
 
-                double startY = row;
-                double endY = row;
-
-                Point startPoint = new Point(startX, startY);
-                Point endPoint = new Point(endX, endY);
-                lineList.add(new Line(startPoint, endPoint, lineWeight));
+                // pen pressure changes here, so close the previous run
+                if (bin != runWeight) {
+                    if (runWeight >= 0) {
+                        lineList.add(runStartX, row, startX, row, runWeight);
+//                        Log.d(TAG, String.format("fyi added a line from (%d, %d) to (%d, %d) w/ weight %d", runStartX, row, startX, row, runWeight));
+                    }
+                    runStartX = startX;
+                    runWeight = bin;
+                }
 
-//                Log.d(TAG, String.format("fyi added a line from (%f, %f) to (%f, %f) w/ weight %d", startX, startY, endX, endY, lineWeight));
+                lastEndX = endX;
+            }
 
-                lastEndX = (int) endX;
+            // make a line from the last run
+            if (runWeight >= 0) {
+                lineList.add(runStartX, row, lastEndX, row, runWeight);
             }
 
             // end-cap
-            if (row < faceMat.rows()-1) {
-                double startX = lastEndX;
-                double endX = lastEndX;
-                double startY = row;
-                double endY = row+1;
-                Point startPoint = new Point(startX, startY);
-                Point endPoint = new Point(endX, endY);
+            if (row < rows - 1) {
                 int lineWeight = 0;
-                lineList.add(new Line(startPoint, endPoint, lineWeight));
-//                Log.d(TAG, String.format("fyi added a line from (%f, %f) to (%f, %f) w/ weight %d (end-cap)", startX, startY, endX, endY, lineWeight));
+                lineList.add(lastEndX, row, lastEndX, row + 1, lineWeight);
+//                Log.d(TAG, String.format("fyi added a line from (%d, %d) to (%d, %d) w/ weight %d (end-cap)", lastEndX, row, lastEndX, row + 1, lineWeight));
             }
         }
 
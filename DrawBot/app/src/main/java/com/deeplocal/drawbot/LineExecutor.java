@@ -0,0 +1,279 @@
+package com.deeplocal.drawbot;
+
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * Drives the robot through a LinePlan one segment at a time.
+ *
+ * In {@link Mode#PIVOT} every corner is a point turn. In {@link Mode#REVERSE_DRIVE} the robot
+ * keeps its heading across serpentine rows: an end-cap is run as a sidestep and the next row is
+ * driven backwards, instead of swinging the robot around to face the other way.
+ *
+ * In either mode, a shallow corner between two inked segments of the same weight is drawn as one
+ * continuous arc instead of line, stop, pivot, line.
+ */
+public class LineExecutor {
+
+    private static final String TAG = "drawbot";
+
+    // corners between inked segments of the same weight are filleted with an arc instead of a stop and pivot
+    private static final double MAX_ARC_DEGREES = 45;
+    private static final double ARC_RADIUS_MM = 3;
+    private static final double MIN_ARC_RADIUS_MM = 0.5;
+
+    public enum Mode {
+        PIVOT,
+        REVERSE_DRIVE
+    }
+
+    private MovementControl mMovementControl;
+    private PhysicalInterface mPhysicalInterface;
+    private CalibrationSource mRobotConfig;
+    private double mDrawScale;
+    private Mode mMode;
+
+    // true while the robot travels backwards relative to its heading
+    private boolean mReversing;
+
+    private boolean mArcCorners = true;
+
+    // length at the start of the next line already covered by the arc into it
+    private double mArcTrim;
+
+    // lookups for the plan being drawn, computed in one pass; index i is the corner from line i - 1 into line i
+    private LinePlan mPreparedPlan;
+    private int mPreparedSize;
+    private double[] mCornerDegrees = new double[0];
+    private double[] mArcTrims = new double[0];
+    private boolean[] mEndCaps = new boolean[0];
+
+    public LineExecutor(MovementControl movementControl, PhysicalInterface physicalInterface,
+                        CalibrationSource robotConfig, double drawScale, Mode mode) {
+        mMovementControl = movementControl;
+        mPhysicalInterface = physicalInterface;
+        mRobotConfig = robotConfig;
+        mDrawScale = drawScale;
+        mMode = mode;
+    }
+
+    /**
+     * Corner handling for the next plan, call on the thread that draws, before {@link #prepare(LinePlan)}
+     */
+    public void setMode(Mode mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Forget the heading state, call before starting a new plan
+     */
+    public void reset() {
+        mReversing = false;
+        mArcTrim = 0;
+    }
+
+    /**
+     * Forget the heading state and precompute every corner angle, fillet and end-cap of the plan,
+     * so drawing a line or turning only reads arrays. The plan must not change while it is drawn.
+     */
+    public void prepare(LinePlan plan) {
+        reset();
+        computeLookups(plan);
+    }
+
+    public void setArcCorners(boolean arcCorners) {
+        mArcCorners = arcCorners;
+        mPreparedPlan = null;
+    }
+
+    private void computeLookups(LinePlan plan) {
+
+        int size = plan.size();
+        if (mCornerDegrees.length < size) {
+            mCornerDegrees = new double[size];
+            mArcTrims = new double[size];
+            mEndCaps = new boolean[size];
+        }
+
+        for (int i = 0; i < size; i++) {
+            mEndCaps[i] = isEndCap(plan, i);
+            mCornerDegrees[i] = (i > 0) ? cornerDegrees(plan, i - 1, i) : 0;
+            mArcTrims[i] = (i > 0) ? arcTrim(plan, i - 1, i) : 0;
+        }
+
+        mPreparedPlan = plan;
+        mPreparedSize = size;
+    }
+
+    // plans drawn without prepare() get their lookups on first use
+    private void ensureLookups(LinePlan plan) {
+        if ((plan != mPreparedPlan) || (plan.size() != mPreparedSize)) {
+            computeLookups(plan);
+        }
+    }
+
+    public void drawLine(LinePlan plan, int index) {
+
+        ensureLookups(plan);
+
+        double scaledDistance;
+
+        // drop pen
+        int thickness = plan.getWeight(index);
+        mMovementControl.setMarkerPressure(thickness);
+        if (thickness == 1) {
+            mPhysicalInterface.writeLED(Color.YELLOW);
+        } else if (thickness == 2) {
+            mPhysicalInterface.writeLED(Color.rgb(255, 150, 0));
+        } else if (thickness == 3) {
+            mPhysicalInterface.writeLED(Color.RED);
+        } else {
+            mPhysicalInterface.writeLED(Color.CYAN);
+        }
+
+        // get line length and scale
+        double distance = plan.getLength(index);
+        scaledDistance = distance * mDrawScale;
+
+        // gap adjustment
+        int x1 = plan.getX1(index);
+        int x2 = plan.getX2(index);
+        if (x1 == x2) { // vertical line
+            RobotConfig.Snapshot config = mRobotConfig.getSnapshot();
+            double adjustment;
+            if  (x1 > 1) { // right side
+                adjustment = (float) config.spacingAdjustRight / 10.0;
+                Log.d("gap", String.format("adjusting right gap by %f mm", adjustment));
+            } else  {  // left side
+                adjustment = (float) config.spacingAdjustLeft / 10.0;
+                Log.d("gap", String.format("adjusting left gap by %f mm", adjustment));
+            }
+            scaledDistance += adjustment;
+        }
+
+        // leave out what the arcs into and out of this line cover
+        scaledDistance -= mArcTrim + ((index + 1 < mPreparedSize) ? mArcTrims[index + 1] : 0);
+        mArcTrim = 0;
+
+        Log.d(TAG, String.format("Drawing %f mm (line %d / %d)", scaledDistance, index + 1, plan.size()));
+
+        if ((mMode == Mode.REVERSE_DRIVE) && mEndCaps[index]) {
+
+            // offset to the next row without changing heading, then drive that row the other way
+            double degrees = mCornerDegrees[index];
+            boolean toRight = (degrees > 0) != mReversing;
+            mMovementControl.sidestep(scaledDistance, toRight, thickness == 0);
+            mReversing = !mReversing;
+
+            // the closing quarter turn leaves the gears loaded for the old direction
+            mMovementControl.takeUpSlop(mReversing);
+            return;
+        }
+
+        mMovementControl.moveStraight(mReversing ? -scaledDistance : scaledDistance, thickness == 0);
+    }
+
+    /**
+     * True if pivot(plan, previous, current) curves through the corner with the pen down
+     */
+    public boolean isArcCorner(LinePlan plan, int previous, int current) {
+
+        ensureLookups(plan);
+
+        if ((mMode == Mode.REVERSE_DRIVE) && (mEndCaps[current] || mEndCaps[previous])) {
+            return false;
+        }
+        return (mCornerDegrees[current] != 0) && (mArcTrims[current] > 0);
+    }
+
+    // turn from line previous into the line after it, current == previous + 1
+    public void pivot(LinePlan plan, int previous, int current) {
+
+        ensureLookups(plan);
+
+        // end-caps are run as sidesteps, so the robot never turns around them
+        if ((mMode == Mode.REVERSE_DRIVE) && (mEndCaps[current] || mEndCaps[previous])) {
+            return;
+        }
+
+        // find angle between previous line and next line
+        double degrees = mCornerDegrees[current];
+
+        // skip turn if none required
+        if (degrees == 0) {
+            return;
+        }
+
+        // keep the pen down and curve through the corner
+        double trim = mArcTrims[current];
+        if (trim > 0) {
+            double radius = trim / Math.tan(Math.toRadians(Math.abs(degrees)) / 2);
+            mMovementControl.arc(radius, degrees, mReversing);
+            mArcTrim = trim;
+            return;
+        }
+
+        // lift pen
+        mMovementControl.setMarkerPressure(0);
+        mPhysicalInterface.writeLED(Color.BLUE);
+
+        Log.d(TAG, String.format("Turning %f degrees", degrees));
+
+        // turning while reversing rotates the direction of travel by the same angle
+        mMovementControl.turn(degrees);
+    }
+
+    /*
+     * How far the fillet at this corner cuts back each of the two segments, in mm, or 0 to pivot instead.
+     * The radius shrinks so a segment is never cut by more than half its length from either end.
+     */
+    private double arcTrim(LinePlan plan, int previous, int current) {
+
+        if (!mArcCorners || (current >= plan.size()) || (plan.getWeight(previous) == 0)
+                || (plan.getWeight(previous) != plan.getWeight(current))
+                || (plan.getX2(previous) != plan.getX1(current)) || (plan.getY2(previous) != plan.getY1(current))) {
+            return 0;
+        }
+
+        double degrees = Math.abs(cornerDegrees(plan, previous, current));
+        if ((degrees == 0) || (degrees > MAX_ARC_DEGREES)) {
+            return 0;
+        }
+
+        double halfTan = Math.tan(Math.toRadians(degrees) / 2);
+        double maxTrim = Math.min(plan.getLength(previous), plan.getLength(current)) * mDrawScale / 2;
+        double radius = Math.min(ARC_RADIUS_MM, maxTrim / halfTan);
+
+        return (radius < MIN_ARC_RADIUS_MM) ? 0 : radius * halfTan;
+    }
+
+    private static double cornerDegrees(LinePlan plan, int previous, int current) {
+        return Utilities.calcDegrees(
+                plan.getX1(previous), plan.getY1(previous),
+                plan.getX1(current), plan.getY1(current),
+                plan.getX2(current), plan.getY2(current));
+    }
+
+    /*
+     * A pen-up segment at a right angle between two antiparallel rows.
+     */
+    static boolean isEndCap(LinePlan plan, int index) {
+
+        if ((index <= 0) || (index >= plan.size() - 1) || (plan.getWeight(index) != 0)) {
+            return false;
+        }
+
+        int prevDx = plan.getX2(index - 1) - plan.getX1(index - 1);
+        int prevDy = plan.getY2(index - 1) - plan.getY1(index - 1);
+        int dx = plan.getX2(index) - plan.getX1(index);
+        int dy = plan.getY2(index) - plan.getY1(index);
+        int nextDx = plan.getX2(index + 1) - plan.getX1(index + 1);
+        int nextDy = plan.getY2(index + 1) - plan.getY1(index + 1);
+
+        boolean perpendicular = (prevDx * dx + prevDy * dy) == 0;
+        boolean antiparallel = ((prevDx * nextDy - prevDy * nextDx) == 0)
+                && ((prevDx * nextDx + prevDy * nextDy) < 0);
+
+        return perpendicular && antiparallel && ((dx != 0) || (dy != 0));
+    }
+}
@@ -0,0 +1,107 @@
+package com.deeplocal.drawbot;
+
+import org.opencv.core.Point;
+
+import java.util.Arrays;
+
+/**
+ * A drawing plan kept in primitive arrays instead of Line and Point objects.
+ * Each segment is four packed coordinates (x1, y1, x2, y2) plus a weight byte.
+ */
+public class LinePlan {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private int[] mCoords;
+    private byte[] mWeights;
+    private int mSize;
+
+    public LinePlan() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LinePlan(int capacity) {
+        capacity = Math.max(1, capacity);
+        mCoords = new int[capacity * 4];
+        mWeights = new byte[capacity];
+    }
+
+    public void add(int x1, int y1, int x2, int y2, int weight) {
+        ensureCapacity(mSize + 1);
+        int offset = mSize * 4;
+        mCoords[offset] = x1;
+        mCoords[offset + 1] = y1;
+        mCoords[offset + 2] = x2;
+        mCoords[offset + 3] = y2;
+        mWeights[mSize] = (byte) weight;
+        mSize++;
+    }
+
+    public void add(Line line) {
+        add((int) line.getPoint1().x, (int) line.getPoint1().y,
+                (int) line.getPoint2().x, (int) line.getPoint2().y, line.getThickness());
+    }
+
+    public void addAll(LinePlan other) {
+        ensureCapacity(mSize + other.mSize);
+        System.arraycopy(other.mCoords, 0, mCoords, mSize * 4, other.mSize * 4);
+        System.arraycopy(other.mWeights, 0, mWeights, mSize, other.mSize);
+        mSize += other.mSize;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int getX1(int index) {
+        return mCoords[index * 4];
+    }
+
+    public int getY1(int index) {
+        return mCoords[index * 4 + 1];
+    }
+
+    public int getX2(int index) {
+        return mCoords[index * 4 + 2];
+    }
+
+    public int getY2(int index) {
+        return mCoords[index * 4 + 3];
+    }
+
+    public int getWeight(int index) {
+        return mWeights[index];
+    }
+
+    public double getLength(int index) {
+        int offset = index * 4;
+        double dx = mCoords[offset] - mCoords[offset + 2];
+        double dy = mCoords[offset + 1] - mCoords[offset + 3];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Allocates a Line for the segment, meant for logging and debugging only
+     */
+    public Line getLine(int index) {
+        return new Line(new Point(getX1(index), getY1(index)),
+                new Point(getX2(index), getY2(index)), getWeight(index));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mWeights.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mWeights.length * 2);
+        mCoords = Arrays.copyOf(mCoords, newCapacity * 4);
+        mWeights = Arrays.copyOf(mWeights, newCapacity);
+    }
+}
@@ -5,7 +5,6 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.Image;
 import android.media.ImageReader;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -23,13 +22,10 @@ import org.opencv.android.Utils;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
-import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.core.Size;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
 
 public class MainActivity extends Activity implements ImageReader.OnImageAvailableListener {
 
@@ -39,52 +35,39 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         }
     }
 
-    private enum DrawMode {
-        NOT_SET,
-        NORMAL,
-        RIGHT_TURN_TEST,
-        LEFT_TURN_TEST,
-        PRESSURE_TEST
-    }
-
-    private enum State {
-        SETUP_NO_PRESSES,
-        SETUP_MORE_PRESSES,
-        NO_PHOTO,
-        PROCESSING_PHOTO,
-        WAITING_TO_DRAW,
-        DRAWING,
-        RESETTING
-    }
-
     public static final String TAG = "drawbot";
 
     private static final String BUTTON_PIN_NAME = "GPIO_174"; // GPIO port wired to the button
-    private static final int DEBOUNCE_MILLIS = 333;
     private static final boolean UPDATE_SCREEN = false;
 
     private Gpio mButtonGpio;
-    private boolean mButtonDebouncing;
+    private DrawBotStateMachine mStateMachine;
 
     private Handler mMainHandler;
     private Handler mBackgroundHandler;
+    private PortraitPipeline mPipeline;
+    private MotionThread mMotionThread;
     private CameraHandler mCameraHandler;
     private ImagePreprocessor mImagePreprocessor;
+    private Mat mGrayFrame;
+    private NormalizeStage mNormalizeStage = new NormalizeStage();
 
     private TextView mInfoTextView;
     private SeekBar mAlphaSb, mBetaSb;
     private ImageView mImageView1;
 
     private MovementControl mMovementControl;
+    private LineExecutor mLineExecutor;
+    private DrawingExecutor mDrawingExecutor;
+    private DrawingSimulator mDrawingSimulator;
     private PhysicalInterface mPhysicalInterface;
     private RobotConfig mRobotConfig;
 
-    private DrawMode mDrawMode = DrawMode.NOT_SET;
-    private State mState = State.SETUP_NO_PRESSES;
-
     private static final double DRAW_SCALE = 4;
-
-    private ArrayList<Line> mDrawingLines;
+    private static final LineExecutor.Mode DRAW_EXECUTION_MODE = LineExecutor.Mode.REVERSE_DRIVE;
+    // tuning plans are calibrated against point turns, so they keep pivoting at every corner
+    private static final LineExecutor.Mode TUNING_EXECUTION_MODE = LineExecutor.Mode.PIVOT;
+    private static final int FACE_ROWS = LineAlgorithm.DEFAULT_FACE_ROWS; // rows of pixels in the drawing
 
     private double mAlpha = 1;
     private int mBeta = 0;
@@ -141,7 +124,10 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
             });
         }
 
-        // initialize gpio input and set callback for falling edge
+        // all state lives on the state machine's thread, everything else just posts events to it
+        mStateMachine = new DrawBotStateMachine(mActions);
+
+        // initialize gpio input and set callback for presses and releases
         try {
             PeripheralManagerService manager = new PeripheralManagerService();
 
@@ -152,7 +138,7 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
             mButtonGpio = manager.openGpio(BUTTON_PIN_NAME);
             mButtonGpio.setDirection(Gpio.DIRECTION_IN);
             mButtonGpio.setActiveType(Gpio.ACTIVE_LOW);
-            mButtonGpio.setEdgeTriggerType(Gpio.EDGE_FALLING);
+            mButtonGpio.setEdgeTriggerType(Gpio.EDGE_BOTH);
             mButtonGpio.registerGpioCallback(mGpioCallback);
         } catch (IOException e) {
             Log.e(TAG, "Error configuring GPIO pin", e);
@@ -163,25 +149,42 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         backgroundThread.start();
         mBackgroundHandler = new Handler(backgroundThread.getLooper());
 
+        // Camera callbacks and image processing get their own thread, plans wait in the pipeline queue
+        mPipeline = new PortraitPipeline();
+
+        // Steppers get their own high-priority thread, away from camera callbacks
+        mMotionThread = new MotionThread();
+        mMotionThread.start();
+
         // Process messages on the main thread
         mMainHandler = new Handler();
 
+        // Parse the face cascade before the first photo needs it
+        FaceClassifierCache.getInstance().preload(MainActivity.this, mBackgroundHandler);
+
         // Initialize camera
         mImagePreprocessor = new ImagePreprocessor(MainActivity.this);
         mCameraHandler = CameraHandler.getInstance();
         try {
-            mCameraHandler.initializeCamera(MainActivity.this, mBackgroundHandler, MainActivity.this);
+            mCameraHandler.initializeCamera(MainActivity.this, mPipeline.getProcessingHandler(), MainActivity.this);
         } catch (IllegalArgumentException e) {
             Log.e(TAG, "Could not initialize camera. (Not connected?)", e);
         }
 
         mRobotConfig = RobotConfig.getInstance(this);
+        mRobotConfig.addListener(mConfigListener);
         mMovementControl = new MovementControl(mRobotConfig);
 
         mPhysicalInterface = new PhysicalInterface();
         mPhysicalInterface.writeLED(Color.WHITE);
 
-        mDrawingLines = new ArrayList<>();
+        mLineExecutor = new LineExecutor(mMovementControl, mPhysicalInterface, mRobotConfig, DRAW_SCALE, DRAW_EXECUTION_MODE);
+        mDrawingExecutor = new DrawingExecutor(mMotionThread, mLineExecutor, mMovementControl);
+        mDrawingExecutor.setListener(mDrawingListener);
+        mDrawingSimulator = new DrawingSimulator(mRobotConfig, DRAW_SCALE, DRAW_EXECUTION_MODE);
+
+        // presses from before this point are queued and handled now
+        mStateMachine.start();
 
         infoText("Ready");
     }
@@ -191,141 +194,153 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         @Override
         public boolean onGpioEdge(Gpio gpio) {
 
-            Log.d(TAG, "Falling edge");
+            try {
+                // active low, true while held down
+                mStateMachine.post(DrawBotStateMachine.EventType.BUTTON_EDGE, gpio.getValue());
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read button", e);
+            }
+
+            return super.onGpioEdge(gpio);
+        }
+
+        @Override
+        public void onGpioError(Gpio gpio, int error) {
+            Log.d(TAG, String.format("Gpio error = %d", error));
+        }
+    };
+
+    private DrawBotStateMachine.Actions mActions = new DrawBotStateMachine.Actions() {
+
+        @Override
+        public boolean takePicture() {
 
-            if (mButtonDebouncing) {
-                Log.d(TAG, "Button debouncing");
-                return true;
+            if (!mPipeline.beginCapture()) {
+                return false;
             }
 
-            infoText("Button press");
+            // reset global alpha and beta
+            mAlpha = 1;
+            mBeta = 0;
 
-            switch (mState) {
+            // Camera processing is already set up for background
+            mCameraHandler.takePicture();
+            return true;
+        }
 
-                case SETUP_NO_PRESSES:
+        @Override
+        public boolean startDrawing() {
+            return MainActivity.this.startDrawing();
+        }
 
-                    // update state
-                    mState = State.SETUP_MORE_PRESSES;
+        @Override
+        public void cancelDrawing() {
+            stopDrawing();
+        }
 
-                    // on the first button press, start a 5-second countdown
-                    Log.d(TAG, "Setup: 5 seconds to enter kiosk number");
-
-                    // runs at end of countdown
-                    mBackgroundHandler.postDelayed(new Runnable() {
-
-                        @Override
-                        public void run() {
-
-                            int upperBound = 1;
-                            if (mDrawMode == DrawMode.RIGHT_TURN_TEST)
-                                upperBound = 2;
-                            else if (mDrawMode == DrawMode.LEFT_TURN_TEST)
-                                upperBound = 3;
-                            else if (mDrawMode == DrawMode.PRESSURE_TEST)
-                                upperBound = 4;
-
-                            // flash kioskNumber # times
-                            mPhysicalInterface.holdLED(Color.BLACK, 1000);
-                            for (int i = 0; i < upperBound; i++) {
-                                mPhysicalInterface.flashLED(Color.BLUE, 200, Color.BLACK, 500);
-                            }
-
-                            // end setup, ready for normal use
-                            if (mDrawMode == DrawMode.NORMAL) {
-                                mState = State.NO_PHOTO;
-                                mPhysicalInterface.writeLED(Color.RED);
-                            } else if (mDrawMode == DrawMode.RIGHT_TURN_TEST) {
-                                squareTest(true);
-                            } else if (mDrawMode == DrawMode.LEFT_TURN_TEST) {
-                                squareTest(false);
-                            } else if (mDrawMode == DrawMode.PRESSURE_TEST) {
-                                pressureTest();
-                            }
-                        }
-                    }, 5000);
-
-                    // intentional no break here to fall through to count the press
-
-                case SETUP_MORE_PRESSES:
-
-                    if (mDrawMode == DrawMode.NORMAL)
-                        mDrawMode = DrawMode.RIGHT_TURN_TEST;
-                    else if (mDrawMode == DrawMode.RIGHT_TURN_TEST)
-                        mDrawMode = DrawMode.LEFT_TURN_TEST;
-                    else if (mDrawMode == DrawMode.LEFT_TURN_TEST)
-                        mDrawMode = DrawMode.PRESSURE_TEST;
-                    else if ((mDrawMode == DrawMode.PRESSURE_TEST) || (mDrawMode == DrawMode.NOT_SET))
-                        mDrawMode = DrawMode.NORMAL;
-
-                    infoText(String.format("Setup: draw mode = %s", mDrawMode));
-
-                    // flash LED blue for feedback
-                    mBackgroundHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mPhysicalInterface.flashLED(Color.BLUE, 500, Color.WHITE, 500);
-                        }
-                    });
-
-                    break;
-
-                case NO_PHOTO:
-
-                    mState = State.PROCESSING_PHOTO;
-
-                    infoText("Taking photo");
-
-                    // reset global alpha and beta
-                    mAlpha = 1;
-                    mBeta = 0;
-
-                    // Camera processing is already set up for background
-                    mPhysicalInterface.writeLED(Color.YELLOW);
-                    mCameraHandler.takePicture();
-
-                    break;
-
-                case WAITING_TO_DRAW:
-
-                    if (mDrawingLines.isEmpty()) {
-                        Log.d(TAG, "No drawing lines");
-                        stopDrawing();
-                        break;
-                    }
-
-                    startDrawing();
-                    break;
-
-                case PROCESSING_PHOTO:
-                case DRAWING:
-                    // If button pressed while drawing, cancel
-                    Log.d(TAG, "Canceling draw operation");
-                    stopDrawing();
-                    break;
-                case RESETTING:
-                    Log.d(TAG, String.format("Intentionally skipping mState = %s button press", mState));
-                    break;
-
-                default:
-                    Log.d(TAG, String.format("No button action, state = %s", mState));
-                    break;
-                }
+        @Override
+        public void cancelCapture() {
+            mPipeline.cancelCapture();
+        }
 
-            mMainHandler.postDelayed(new Runnable() {
+        @Override
+        public boolean hasWaitingPlan() {
+            return mPipeline.getWaitingCount() > 0;
+        }
 
-                @Override
-                public void run() {
-                    mButtonDebouncing = false;
-                    Log.d(TAG, "Button done debouncing");
-                }
-            }, DEBOUNCE_MILLIS);
+        @Override
+        public void writeLED(int color) {
+            mPhysicalInterface.writeLED(color);
+        }
 
-            return super.onGpioEdge(gpio);
+        @Override
+        public void flashSetupPress() {
+
+            // flash LED blue for feedback
+            mPhysicalInterface.playLED(new LedPattern().blink(Color.BLUE, 500, Color.WHITE, 500, 1));
         }
 
         @Override
-        public void onGpioError(Gpio gpio, int error) {
-            Log.d(TAG, String.format("Gpio error = %d", error));
+        public void showDrawMode(DrawBotStateMachine.DrawMode drawMode, int finalColor) {
+
+            int upperBound = 1;
+            if (drawMode == DrawBotStateMachine.DrawMode.RIGHT_TURN_TEST)
+                upperBound = 2;
+            else if (drawMode == DrawBotStateMachine.DrawMode.LEFT_TURN_TEST)
+                upperBound = 3;
+            else if (drawMode == DrawBotStateMachine.DrawMode.PRESSURE_TEST)
+                upperBound = 4;
+
+            // flash kioskNumber # times
+            mPhysicalInterface.playLED(new LedPattern()
+                    .hold(Color.BLACK, 1000)
+                    .blink(Color.BLUE, 200, Color.BLACK, 500, upperBound)
+                    .then(finalColor));
+        }
+
+        @Override
+        public void queueTest(DrawBotStateMachine.DrawMode drawMode) {
+            if (drawMode == DrawBotStateMachine.DrawMode.RIGHT_TURN_TEST) {
+                squareTest(true);
+            } else if (drawMode == DrawBotStateMachine.DrawMode.LEFT_TURN_TEST) {
+                squareTest(false);
+            } else if (drawMode == DrawBotStateMachine.DrawMode.PRESSURE_TEST) {
+                pressureTest();
+            }
+        }
+
+        @Override
+        public void info(String text) {
+            infoText(text);
+        }
+    };
+
+    /*
+     * Called on the processing thread with the new plan, or null if there is nothing to draw.
+     * Slider tweaks (replace) swap out the waiting plans instead of queueing another one.
+     */
+    private void onPortraitProcessed(LinePlan plan, boolean replace) {
+
+        if (replace) {
+            if ((plan != null) && mPipeline.replace(plan)) {
+                mStateMachine.post(DrawBotStateMachine.EventType.PLAN_READY, true);
+            }
+            return;
+        }
+
+        // a cancelled capture's plan is dropped without telling the state machine
+        boolean stale, queued;
+        synchronized (mPipeline) {
+            stale = mPipeline.isNextCaptureCancelled();
+            queued = mPipeline.finishCapture(plan);
+        }
+        if ((plan != null) && !queued && !stale) {
+            Log.e(TAG, "Plan queue full, dropping portrait");
+        }
+        if (!stale) {
+            mStateMachine.post(DrawBotStateMachine.EventType.PLAN_READY, queued);
+        }
+    }
+
+    private DrawingExecutor.Listener mDrawingListener = new DrawingExecutor.Listener() {
+
+        @Override
+        public void onDrawingFinished(boolean cancelled) {
+            mStateMachine.post(DrawBotStateMachine.EventType.DRAW_DONE, cancelled);
+            Log.d(TAG, String.format("Pen writes: %s, LED writes: %s",
+                    mMovementControl.getPenState().formatCounters(), mPhysicalInterface.formatLedCounters()));
+        }
+    };
+
+    private RobotConfig.Listener mConfigListener = new RobotConfig.Listener() {
+
+        @Override
+        public void onConfigChanged(RobotConfig.Snapshot snapshot) {
+            // picked up by the next move, a drawing in progress carries on
+            Log.d(TAG, String.format("Calibration updated: slop L %d/%d R %d/%d, spacing L %d R %d",
+                    snapshot.slopStepsLeftFwd, snapshot.slopStepsLeftBack, snapshot.slopStepsRightFwd,
+                    snapshot.slopStepsRightBack, snapshot.spacingAdjustLeft, snapshot.spacingAdjustRight));
+            infoText("Calibration updated");
         }
     };
 
@@ -335,7 +350,14 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         Log.d(TAG, "onImageAvailable()");
 
         try (Image image = reader.acquireNextImage()) {
-            mImagePreprocessor.preprocessImage(image);
+            mGrayFrame = mImagePreprocessor.preprocessImage(image);
+        }
+        mStateMachine.post(DrawBotStateMachine.EventType.IMAGE_READY);
+
+        if (mGrayFrame == null) {
+            Log.e(TAG, "Could not get camera image");
+            onPortraitProcessed(null, false);
+            return;
         }
 
         processPhoto(true);
@@ -346,92 +368,19 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         // sample: https://github.com/opencv/opencv/blob/master/samples/android/face-detection/src/org/opencv/samples/facedetect/FdActivity.java
         // sample: http://docs.opencv.org/trunk/d7/d8b/tutorial_py_face_detection.html
 
-        Uri cameraImageUri = Uri.parse("file://" + MainActivity.this.getCacheDir().getAbsolutePath() + "/preview.png");
-        Log.d(TAG, "Image URI = " + cameraImageUri);
-
-        InputStream cameraImageStream;
-        Mat cameraImageBuffer;
-
-        // create a matrix from the photo
-        try {
-            cameraImageStream = getContentResolver().openInputStream(cameraImageUri);
-            cameraImageBuffer = Utilities.streamToMat(cameraImageStream);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not get camera image", e);
+        // grayscale frame handed over in memory by the image preprocessor
+        Mat grayImage = mGrayFrame;
+        if (grayImage == null) {
+            Log.d(TAG, "No camera image to process");
             return;
         }
-
-        // decode the image as grayscale
-        Mat grayImage = Highgui.imdecode(cameraImageBuffer, Highgui.CV_LOAD_IMAGE_GRAYSCALE);
         Log.d(TAG, String.format("Original photo hxw = %dx%d", grayImage.height(), grayImage.width())); // this image is 224x224
 
-        // rotate image 90 counter-clockwise
-        Point center = new Point(grayImage.cols() / 2, grayImage.rows() / 2);
-        Mat rotMat = Imgproc.getRotationMatrix2D(center, 90, 1);
-        Mat rotatedGrayImage = new Mat(grayImage.size(), grayImage.type());
-        Imgproc.warpAffine(grayImage, rotatedGrayImage, rotMat, grayImage.size());
-
-        // apply initial alpha and beta and measure median
-        Mat levelsMat = new Mat(rotatedGrayImage.size(), rotatedGrayImage.type());
-        rotatedGrayImage.convertTo(levelsMat, -1, mAlpha, mBeta);
-
-        // auto-brightness / contrast algorithm
-        // apply levels shift until median is between lower and upper target
-        int lowerTarget = 55, upperTarget = 200;
-        int numIters = 0, bestMedian = LineAlgorithm.getMedian(levelsMat), bestBeta = mBeta;
-        double bestAlpha = mAlpha;
-        while (autoLevels && ((bestMedian < lowerTarget) || (bestMedian > upperTarget))) {
-
-//            Log.d(TAG, String.format("trying alpha = %f, beta = %d", mAlpha, mBeta));
-            rotatedGrayImage.convertTo(levelsMat, -1, mAlpha, mBeta); // -1 means same as input type
-
-            int median = LineAlgorithm.getMedian(levelsMat);
-            if (median < lowerTarget) {
-
-                if (median > bestMedian) {
-                    bestMedian = median;
-                    bestAlpha = mAlpha;
-                    bestBeta = mBeta;
-                }
-
-                if (mBeta < 25) {
-                    mBeta += 5;
-                } else {
-                    mAlpha += 0.2;
-                    mBeta = 0;
-                }
-            } else if (median > upperTarget) {
-
-                if (median < bestMedian) {
-                    bestMedian = median;
-                    bestAlpha = mAlpha;
-                    bestBeta = mBeta;
-                }
-
-                if (mBeta > 0) {
-                    mBeta -= 5;
-                } else {
-                    mAlpha -= 0.2;
-                    mBeta = 25;
-                }
-            } else {
-                Log.d(TAG, "Reached target median");
-                break;
-            }
-
-            // check if reached max number of iterations
-            numIters++;
-            if (numIters > 25) {
-                Log.d(TAG, String.format("Using best alpha = %f, beta = %d", bestAlpha, bestBeta));
-                mAlpha = bestAlpha;
-                mBeta = bestBeta;
-                break;
-            }
-        }
-
-        // equalize histogram of original image
-        Mat eqMat = new Mat(levelsMat.size(), levelsMat.type());
-        Imgproc.equalizeHist(levelsMat, eqMat);
+        // rotate image 90 counter-clockwise, then auto-brightness / contrast and equalization
+        // (levels put the median between lower and upper target, both applied as one lookup table)
+        Mat eqMat = mNormalizeStage.normalize(grayImage, mAlpha, mBeta, autoLevels);
+        mAlpha = mNormalizeStage.getAlpha();
+        mBeta = mNormalizeStage.getBeta();
 
         if (UPDATE_SCREEN) {
 
@@ -455,7 +404,7 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         }
 
         // crop face from original image
-        Mat faceMat = LineAlgorithm.cropFace(MainActivity.this, eqMat); // faceMat is type CvType.CV_8UC1
+        Mat faceMat = LineAlgorithm.cropFace(MainActivity.this, eqMat, FACE_ROWS); // faceMat is type CvType.CV_8UC1
 
         // if it didn't find a face
         if (faceMat == null) {
@@ -469,8 +418,7 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
             if (mNumNoFaces < MAX_MISS_FACES) {
 
                 // flag as no photo error and stop
-                mPhysicalInterface.writeLED(Color.RED);
-                mState = State.NO_PHOTO;
+                onPortraitProcessed(null, false);
                 return;
             }
 
@@ -482,8 +430,7 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
                 Mat croppedMat = new Mat(eqMat, cropRect);
 
                 // scale image
-                double numDesiredRows = 40;
-                double scaleFactor = numDesiredRows / croppedMat.rows();
+                double scaleFactor = (double) FACE_ROWS / croppedMat.rows();
                 Log.d(TAG, String.format("scaleFactor = %f", scaleFactor));
                 int newRows = (int) Math.floor(croppedMat.rows() * scaleFactor);
                 int newCols = (int) Math.floor(croppedMat.cols() * scaleFactor);
@@ -515,25 +462,21 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         }
 
         // get drawing lines
-        ArrayList<Line> copicLines = LineAlgorithm.getCopicLines(faceMat);
+        LinePlan copicLines = LineAlgorithm.getCopicLines(faceMat);
 
-        // add lines to move from center to starting point
+        // save drawing lines, starting with lines to move from center to starting point
         // (position at center facing top of page, turn left, move to edge, turn right, move to top, turn right, start drawing)
         int centerX = faceMat.width() / 2;
         int centerY = faceMat.height() / 2;
-        Point centerBottom = new Point(centerX, faceMat.height());
-        Point centerCenter = new Point(centerX, faceMat.height() / 2);
-        Point leftCenter = new Point(0, centerY);
-        Point startPoint = copicLines.get(0).getPoint1();
-        copicLines.add(0, new Line(centerBottom, centerCenter, 0));
-        copicLines.add(1, new Line(centerCenter, leftCenter, 0));
-        copicLines.add(2, new Line(leftCenter, startPoint, 0));
-
-        // save drawing lines and update state
-        mDrawingLines.clear();
-        mDrawingLines.addAll(copicLines);
-        mState = State.WAITING_TO_DRAW;
-        mPhysicalInterface.writeLED(Color.GREEN);
+        LinePlan drawingLines = new LinePlan();
+        drawingLines.add(centerX, faceMat.height(), centerX, faceMat.height() / 2, 0);
+        drawingLines.add(centerX, faceMat.height() / 2, 0, centerY, 0);
+        drawingLines.add(0, centerY, copicLines.getX1(0), copicLines.getY1(0), 0);
+        drawingLines.addAll(copicLines);
+        Log.d(TAG, String.format("Estimated drawing time: %s", mDrawingSimulator.simulate(drawingLines)));
+
+        // hand over to the motion side
+        onPortraitProcessed(drawingLines, !autoLevels);
 
         // unset flag
         Log.d(TAG, "Successfully processed");
@@ -555,54 +498,28 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
         });
     }
 
-    private void startDrawing() {
-
-        mState = State.DRAWING;
+    // the countdown before this is run by the state machine
+    private boolean startDrawing() {
 
-        // start drawing in 3 secs
-        Log.d(TAG, "Drawing in 3 secs..");
-        mPhysicalInterface.holdLED(Color.MAGENTA, 3000);
-
-        // begin drawing
-        Log.d(TAG, "Begin drawing");
-        mPhysicalInterface.writeLED(Color.BLUE);
-
-        // Queue up all the drawing ops
-        for (int i = 0; i < mDrawingLines.size(); i++) {
-
-            // Drawing op
-            final Line current = mDrawingLines.get(i);
-            final int nextIndex = i+1;
-            mBackgroundHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    drawLine(current, nextIndex, mDrawingLines.size());
-                }
-            });
-
-            if (nextIndex < mDrawingLines.size()) {
-                // Pivoting op
-                final Line next = mDrawingLines.get(nextIndex);
-                mBackgroundHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        pivot(current, next);
-                    }
-                });
-            }
+        // one job walks the plan on the motion thread, the next photo can be processed meanwhile
+        LinePlan plan = mPipeline.poll();
+        if (plan == null) {
+            return false;
         }
+        LineExecutor.Mode mode = (mStateMachine.getDrawMode() == DrawBotStateMachine.DrawMode.NORMAL)
+                ? DRAW_EXECUTION_MODE : TUNING_EXECUTION_MODE;
+        if (!mDrawingExecutor.start(plan, mode)) {
+            Log.e(TAG, "Motion queue full, could not start drawing");
+            return false;
+        }
+        return true;
     }
 
     private void stopDrawing() {
 
-        Log.d(TAG, "Resetting");
-
-        // Clear out the drawing ops queue
-        mDrawingLines.clear();
-        mBackgroundHandler.removeCallbacksAndMessages(null);
-
-        mState = State.NO_PHOTO;
-        mPhysicalInterface.writeLED(Color.RED);
+        // Stop the move in progress, the pen lifts once it has ramped down
+        // (portraits already waiting in the pipeline are kept for the next visitors)
+        mDrawingExecutor.cancel();
     }
 
     /*
@@ -613,22 +530,22 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
     public void squareTest(boolean rightTurn) {
 
         int length = 25;
-        mDrawingLines.clear();
+        LinePlan plan = new LinePlan();
         for (int i = 0; i < 100; i++) {
             if (rightTurn) {
-                mDrawingLines.add(new Line(new Point(0, 0), new Point(length - 1, 0), 1));
-                mDrawingLines.add(new Line(new Point(length, 0), new Point(length, length - 1), 1));
-                mDrawingLines.add(new Line(new Point(length, length), new Point(1, length), 1));
-                mDrawingLines.add(new Line(new Point(0, length), new Point(0, 1), 1));
+                plan.add(0, 0, length - 1, 0, 1);
+                plan.add(length, 0, length, length - 1, 1);
+                plan.add(length, length, 1, length, 1);
+                plan.add(0, length, 0, 1, 1);
             } else {
-                mDrawingLines.add(new Line(new Point(0, 0), new Point(0, length - 1), 1));
-                mDrawingLines.add(new Line(new Point(0, length), new Point(length - 1, length), 1));
-                mDrawingLines.add(new Line(new Point(length, length), new Point(length, 1), 1));
-                mDrawingLines.add(new Line(new Point(length, 0), new Point(1, 0), 1));
+                plan.add(0, 0, 0, length - 1, 1);
+                plan.add(0, length, length - 1, length, 1);
+                plan.add(length, length, length, 1, 1);
+                plan.add(length, 0, 1, 0, 1);
             }
         }
-        mState = State.WAITING_TO_DRAW;
-        mPhysicalInterface.writeLED(Color.GREEN);
+        mPipeline.clear();
+        mPipeline.offer(plan);
     }
 
     /*
@@ -637,92 +554,26 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
      */
     public void pressureTest() {
 
-        mDrawingLines.clear();
+        LinePlan plan = new LinePlan();
 
         for (int  i = 0; i < 100; i++) {
-            mDrawingLines.add(new Line(new Point(0, 0), new Point(5, 0), 0));
-            mDrawingLines.add(new Line(new Point(5, 0), new Point(10, 0), 1));
-            mDrawingLines.add(new Line(new Point(10, 0), new Point(15, 0), 2));
-            mDrawingLines.add(new Line(new Point(15, 0), new Point(20, 0), 3));
+            plan.add(0, 0, 5, 0, 0);
+            plan.add(5, 0, 10, 0, 1);
+            plan.add(10, 0, 15, 0, 2);
+            plan.add(15, 0, 20, 0, 3);
 
-            mDrawingLines.add(new Line(new Point(20, 0), new Point(20, 5), 0));
+            plan.add(20, 0, 20, 5, 0);
 
-            mDrawingLines.add(new Line(new Point(20, 5), new Point(15, 5), 0));
-            mDrawingLines.add(new Line(new Point(15, 5), new Point(10, 5), 1));
-            mDrawingLines.add(new Line(new Point(10, 5), new Point(5, 5), 2));
-            mDrawingLines.add(new Line(new Point(5, 5), new Point(0, 5), 3));
+            plan.add(20, 5, 15, 5, 0);
+            plan.add(15, 5, 10, 5, 1);
+            plan.add(10, 5, 5, 5, 2);
+            plan.add(5, 5, 0, 5, 3);
 
-            mDrawingLines.add(new Line(new Point(0, 5), new Point(0, 0), 0));
+            plan.add(0, 5, 0, 0, 0);
         }
 
-        mState = State.WAITING_TO_DRAW;
-        mPhysicalInterface.writeLED(Color.GREEN);
-    }
-
-    public void drawLine(Line current, int index, int count) {
-
-        double scaledDistance;
-
-        // drop pen
-        int thickness = current.getThickness();
-        mMovementControl.setMarkerPressure(thickness);
-        if (thickness == 1) {
-            mPhysicalInterface.writeLED(Color.YELLOW);
-        } else if (thickness == 2) {
-            mPhysicalInterface.writeLED(Color.rgb(255, 150, 0));
-        } else if (thickness == 3) {
-            mPhysicalInterface.writeLED(Color.RED);
-        } else {
-            mPhysicalInterface.writeLED(Color.CYAN);
-        }
-
-        // get line length and scale
-        double distance = current.getLength();
-        scaledDistance = distance * DRAW_SCALE;
-
-        // gap adjustment
-        Point p1 = current.getPoint1();
-        Point p2 = current.getPoint2();
-        if (p1.x == p2.x) { // vertical line
-            double adjustment;
-            if  (p1.x > 1) { // right side
-                adjustment = (float) mRobotConfig.getSpacingAdjustRight() / 10.0;
-                Log.d("gap", String.format("adjusting right gap by %f mm", adjustment));
-            } else  {  // left side
-                adjustment = (float) mRobotConfig.getSpacingAdjustLeft() / 10.0;
-                Log.d("gap", String.format("adjusting left gap by %f mm", adjustment));
-            }
-            scaledDistance += adjustment;
-        }
-
-        infoText(String.format("Drawing %f mm (line %d / %d)", scaledDistance, index, count));
-
-        mMovementControl.moveStraight(scaledDistance);
-    }
-
-    public void pivot(Line previous, Line current) {
-
-        Point p1, p2, p3;
-
-        // find angle between previous line and next line
-        p1 = previous.getPoint1();
-        p2 = current.getPoint1();
-        p3 = current.getPoint2();
-
-        double degrees = Utilities.calcDegrees(p1, p2, p3);
-
-        // skip turn if none required
-        if (degrees == 0) {
-            return;
-        }
-
-        // lift pen
-        mMovementControl.setMarkerPressure(0);
-        mPhysicalInterface.writeLED(Color.BLUE);
-
-        infoText(String.format("Turning %f degrees", degrees));
-
-        mMovementControl.turn(degrees);
+        mPipeline.clear();
+        mPipeline.offer(plan);
     }
 
     @Override
@@ -730,12 +581,28 @@ public class MainActivity extends Activity implements ImageReader.OnImageAvailab
 
         super.onDestroy();
 
+        if (mRobotConfig != null) {
+            mRobotConfig.removeListener(mConfigListener);
+        }
+
         if (mPhysicalInterface != null) {
             mPhysicalInterface.writeLED(Color.BLACK); // off
             mPhysicalInterface.close();
             mPhysicalInterface = null;
         }
 
+        if (mMotionThread != null) {
+            mMotionThread.quit();
+        }
+
+        if (mPipeline != null) {
+            mPipeline.quit();
+        }
+
+        if (mStateMachine != null) {
+            mStateMachine.quit();
+        }
+
         // close movement control objects
         if (mMovementControl != null) {
             mMovementControl.close();
@@ -0,0 +1,36 @@
+package com.deeplocal.drawbot;
+
+import android.util.Log;
+
+/**
+ * Time source for motion and LED timing, so moves can run against a virtual clock off-device.
+ */
+public interface MotionClock {
+
+    long nanoTime();
+
+    void sleepNanos(long nanos);
+
+    /**
+     * Wall clock that really sleeps
+     */
+    MotionClock SYSTEM = new MotionClock() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            if (nanos <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Log.e("drawbot", "Clock could not sleep", e);
+            }
+        }
+    };
+}
@@ -0,0 +1,91 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
+
+import java.util.ArrayList;
+
+/**
+ * Linear acceleration ramp for smoothMotion, precomputed once per (slowest, fastest, rate) set.
+ * Delay j is stepDelaySlowest - j * rampRate, j = 0 is the starting delay and j = getRampSteps() is cruise speed.
+ * Durations are shared and immutable so a move replays them without allocating.
+ */
+public class MotionProfile {
+
+    private static final ArrayList<MotionProfile> sProfiles = new ArrayList<>();
+
+    private final int mStepDelaySlowest;
+    private final int mStepDelayFastest;
+    private final int mRampRate;
+
+    private final int[] mDelays;
+    private final StepDuration[] mDurations;
+
+    private MotionProfile(int stepDelaySlowest, int stepDelayFastest, int rampRate) {
+
+        mStepDelaySlowest = stepDelaySlowest;
+        mStepDelayFastest = stepDelayFastest;
+        mRampRate = rampRate;
+
+        // same walk as the original ramp-up loop: keep stepping while slower than the fastest delay
+        int rampSteps = 0;
+        if (rampRate > 0) {
+            for (int delay = stepDelaySlowest; delay > stepDelayFastest; delay -= rampRate) {
+                rampSteps++;
+            }
+        }
+
+        mDelays = new int[rampSteps + 1];
+        mDurations = new StepDuration[rampSteps + 1];
+        for (int j = 0; j <= rampSteps; j++) {
+            mDelays[j] = stepDelaySlowest - j * rampRate;
+            mDurations[j] = new StepDuration(0, mDelays[j]);
+        }
+    }
+
+    /**
+     * Cached profile for these parameters, built on first use
+     */
+    public static MotionProfile get(int stepDelaySlowest, int stepDelayFastest, int rampRate) {
+
+        synchronized (sProfiles) {
+
+            // a handful of profiles at most, a linear scan keeps lookups allocation-free
+            for (int i = 0; i < sProfiles.size(); i++) {
+                MotionProfile profile = sProfiles.get(i);
+                if (profile.mStepDelaySlowest == stepDelaySlowest && profile.mStepDelayFastest == stepDelayFastest
+                        && profile.mRampRate == rampRate) {
+                    return profile;
+                }
+            }
+
+            MotionProfile profile = new MotionProfile(stepDelaySlowest, stepDelayFastest, rampRate);
+            sProfiles.add(profile);
+            return profile;
+        }
+    }
+
+    // number of accelerating steps before cruise speed
+    public int getRampSteps() {
+        return mDelays.length - 1;
+    }
+
+    public int getDelay(int j) {
+        return mDelays[j];
+    }
+
+    public StepDuration getDuration(int j) {
+        return mDurations[j];
+    }
+
+    public int getStepDelaySlowest() {
+        return mStepDelaySlowest;
+    }
+
+    public int getStepDelayFastest() {
+        return mStepDelayFastest;
+    }
+
+    public int getRampRate() {
+        return mRampRate;
+    }
+}
@@ -0,0 +1,100 @@
+package com.deeplocal.drawbot;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated high-priority thread that runs motion commands, so step timing doesn't share a looper
+ * with camera callbacks and image processing.
+ *
+ * Commands go through a lock-free single-producer single-consumer ring: only one thread
+ * (the state machine's) may call post() and clear().
+ */
+public class MotionThread extends Thread {
+
+    private static final String TAG = "drawbot";
+
+    private static final int CAPACITY = 16384; // power of two
+    private static final int MASK = CAPACITY - 1;
+
+    private final Runnable[] mCommands = new Runnable[CAPACITY];
+    private final int[] mGenerations = new int[CAPACITY];
+
+    private final AtomicLong mHead = new AtomicLong(); // next slot to run, written by the motion thread
+    private final AtomicLong mTail = new AtomicLong(); // next slot to fill, written by the producer
+
+    // clear() bumps the generation, queued commands from older generations are skipped
+    private volatile int mGeneration;
+    private volatile boolean mQuit;
+
+    public MotionThread() {
+        super("MotionThread");
+    }
+
+    /**
+     * Queue a command, returns false (and logs) if the queue is full. Callers must check it, a dropped
+     * motion command leaves the robot out of step with the plan.
+     */
+    public boolean post(Runnable command) {
+
+        long tail = mTail.get();
+        if (tail - mHead.get() >= CAPACITY) {
+            Log.e(TAG, String.format("Motion queue full (%d commands), command dropped", CAPACITY));
+            return false;
+        }
+
+        int slot = (int) (tail & MASK);
+        mCommands[slot] = command;
+        mGenerations[slot] = mGeneration;
+        mTail.lazySet(tail + 1);
+
+        LockSupport.unpark(this);
+        return true;
+    }
+
+    /**
+     * Drop everything queued, the command already running finishes
+     */
+    public void clear() {
+        mGeneration++;
+    }
+
+    public void quit() {
+        mQuit = true;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        while (!mQuit) {
+
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            int slot = (int) (head & MASK);
+            Runnable command = mCommands[slot];
+            int generation = mGenerations[slot];
+            mCommands[slot] = null;
+            mHead.lazySet(head + 1);
+
+            if (generation != mGeneration) {
+                continue;
+            }
+
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Motion command failed", e);
+            }
+        }
+    }
+}
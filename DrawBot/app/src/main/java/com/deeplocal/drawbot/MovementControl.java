@@ -2,10 +2,7 @@ package com.deeplocal.drawbot;
 
 import android.util.Log;
 
-import com.google.android.things.contrib.driver.pwmservo.Servo;
 import com.polidea.androidthings.driver.steppermotor.Direction;
-import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
-import com.polidea.androidthings.driver.uln2003.driver.ULN2003;
 import com.polidea.androidthings.driver.uln2003.driver.ULN2003Resolution;
 
 import java.io.IOException;
@@ -15,106 +12,263 @@ public class MovementControl {
     private static final String TAG = "drawbot";
 
     // Tunable Parameters - Distance and Turning
-    private static final double STEPS_PER_MM  = 2.721485;  // straight-line conversion
-    private static final double STEPS_PER_DEG = 2.923;     // point-turn conversion
+    static final double STEPS_PER_MM  = 2.721485;  // straight-line conversion
+    static final double STEPS_PER_DEG = 2.923;     // point-turn conversion
+    private static final int HALF_STEPS_PER_STEP = 2;  // point turns step in FULL, straight moves in HALF
 
     private static final String[] leftMotorPins = { "GPIO_10", "GPIO_35", "GPIO_33", "GPIO_128" };
     private static final String[] rightMotorPins = { "GPIO_32", "GPIO_34", "GPIO_37", "GPIO_39" };
     private static final String penServoPin = "PWM2";
 
-    private ULN2003 mLeftStepper;
-    private ULN2003 mRightStepper;
-    private Servo mPenServo;
+    private static final long SETTLE_NANOS = 200000000; // pause around turn phases
+    private static final long SETTLE_SLICE_NANOS = 10000000; // how often a settle pause checks for cancel
+    private static final long PEN_NANOS_PER_DEGREE = 2000000; // servo travel, about 0.1 s per 60 degrees
+    private static final int PEN_FULL_TRAVEL_DEGREES = 180;   // assumed when the starting angle is unknown
 
-    private RobotConfig mRobotConfig;
+    // step delays in nanos: slowest, fastest, ramp per step
+    private static final MotionProfile STRAIGHT_PROFILE = MotionProfile.get(4000000, 500000, 20000);
+    private static final MotionProfile TURN_PROFILE = MotionProfile.get(4200000, 400000, 30000);
 
-    public MovementControl(RobotConfig robotConfig) {
+    private StepperDriver mLeftStepper;
+    private StepperDriver mRightStepper;
+    private PenDriver mPenServo;
+    private final ActuatorState mPenState = new ActuatorState();
+    private long mPenSettledAt; // clock time the pen reaches its last commanded angle
+    private MotionClock mClock;
+    private DualStepScheduler mScheduler;
+    private CancellationToken mCancellationToken;
+
+    private CalibrationSource mRobotConfig;
+
+    // counters for estimating and tuning, see resetCounters()
+    private int mTurns;
+    private long mTurnNanos;
+    private long mSlopSteps;
+    private long mPenWaitNanos;
+
+    public MovementControl(CalibrationSource robotConfig) {
 
         mRobotConfig = robotConfig;
+        mClock = new PrecisionClock();
 
         try {
-            mLeftStepper = new ULN2003(leftMotorPins[0], leftMotorPins[1], leftMotorPins[2], leftMotorPins[3]);
-            mLeftStepper.open();
-            mRightStepper = new ULN2003(rightMotorPins[0], rightMotorPins[1], rightMotorPins[2], rightMotorPins[3]);
-            mRightStepper.open();
+            mLeftStepper = new Uln2003StepperDriver(leftMotorPins);
+            mRightStepper = new Uln2003StepperDriver(rightMotorPins);
         } catch (Exception e) {
             Log.e(MainActivity.TAG, "Error opening steppers", e);
         }
+        mScheduler = new DualStepScheduler(mLeftStepper, mRightStepper, mClock);
+        mScheduler.setRecorder(StepTimingRecorder.getInstance());
 
         try {
-            mPenServo = new Servo(penServoPin);
-            mPenServo.setPulseDurationRange(1, 2); // according to your servo's specifications
-            mPenServo.setAngleRange(0, 180);       // according to your servo's specifications
-            mPenServo.setEnabled(true);
+            mPenServo = new ServoPenDriver(penServoPin);
             setMarkerPressure(0);
         } catch (IOException e) {
             Log.e(TAG, "Could not init pen servo", e);
         }
     }
 
-    // distance in mm
+    /**
+     * Build against any driver implementation, e.g. recording drivers and a virtual clock off-device
+     */
+    public MovementControl(CalibrationSource robotConfig, StepperDriver leftStepper, StepperDriver rightStepper,
+                           PenDriver penServo, MotionClock clock) {
+
+        mRobotConfig = robotConfig;
+        mLeftStepper = leftStepper;
+        mRightStepper = rightStepper;
+        mPenServo = penServo;
+        mClock = clock;
+        mScheduler = new DualStepScheduler(mLeftStepper, mRightStepper, mClock);
+
+        setMarkerPressure(0);
+    }
+
+    // distance in mm, negative distances drive backwards
     public void moveStraight(double distance) {
+        moveStraight(distance, false);
+    }
 
-        int minSpeed = 4000000;
-        int maxSpeed = 500000;
-        int rampRate = 20000;
+    // pen-up moves use the faster travel profile from the robot config
+    public void moveStraight(double distance, boolean penUp) {
 
-        int steps = (int) (distance * STEPS_PER_MM);
+        int steps = (int) (Math.abs(distance) * STEPS_PER_MM);
+        MotionProfile profile = penUp ? mRobotConfig.getSnapshot().travelProfile : STRAIGHT_PROFILE;
 
 //        constantMotion(steps, isDrawing, Direction.COUNTERCLOCKWISE, Direction.CLOCKWISE);
-        smoothMotion(steps, ULN2003Resolution.HALF, Direction.COUNTERCLOCKWISE, Direction.CLOCKWISE, minSpeed, maxSpeed, rampRate);
+        if (distance < 0) {
+            smoothMotion(steps, ULN2003Resolution.HALF, Direction.CLOCKWISE, Direction.COUNTERCLOCKWISE, profile);
+        } else {
+            smoothMotion(steps, ULN2003Resolution.HALF, Direction.COUNTERCLOCKWISE, Direction.CLOCKWISE, profile);
+        }
+    }
+
+    /*
+     * Shift sideways by distance mm and end up with the same heading.
+     * A quarter turn out and back with one settle pause on each end, instead of two full turns.
+     */
+    public void sidestep(double distance, boolean toRight, boolean penUp) {
+
+        double degrees = toRight ? 90 : -90;
+
+        // the settle pauses belong to the quarter turns
+        turnSettle();
+        turn(degrees, false);
+        if (isCancelled()) return;
+        moveStraight(distance, penUp);
+        if (isCancelled()) return;
+        turn(-degrees, false);
+        turnSettle();
     }
 
     public void turn(double turnDegrees) {
+        turn(turnDegrees, true);
+    }
 
-        int minSpeed = 4200000;
-        int maxSpeed = 400000;
-        int rampRate = 30000;
+    /*
+     * Take up gear backlash on both wheels before driving the other way,
+     * with the same slop steps a turn runs on the wheel that reverses.
+     */
+    public void takeUpSlop(boolean backwards) {
 
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Turn could not sleep", e);
+        RobotConfig.Snapshot config = mRobotConfig.getSnapshot();
+        long start = mClock.nanoTime();
+
+        if (backwards) {
+            mLeftStepper.setDirection(Direction.CLOCKWISE);
+            mRightStepper.setDirection(Direction.COUNTERCLOCKWISE);
+            slopSteps(config.slopStepsLeftBack, config.slopStepsRightBack);
+        } else {
+            mLeftStepper.setDirection(Direction.COUNTERCLOCKWISE);
+            mRightStepper.setDirection(Direction.CLOCKWISE);
+            slopSteps(config.slopStepsLeftFwd, config.slopStepsRightFwd);
+        }
+        mTurnNanos += mClock.nanoTime() - start;
+    }
+
+    /*
+     * Drive along an arc of radius mm (measured at the pen) while the heading turns by degrees, positive to the right.
+     * The centre travel and a pivot component are split across the wheels and both run in one ramped move,
+     * so the robot never stops. Radii narrower than the wheel base run the inner wheel backwards.
+     * No slop compensation, as with straight moves.
+     */
+    public void arc(double radius, double degrees, boolean backwards) {
+
+        double centerSteps = Math.abs(radius * Math.toRadians(degrees)) * STEPS_PER_MM;
+        if (backwards) {
+            centerSteps = -centerSteps;
+        }
+        double pivotSteps = degrees * STEPS_PER_DEG * 2 * HALF_STEPS_PER_STEP;
+
+        int leftSteps = (int) Math.round(centerSteps + pivotSteps);
+        int rightSteps = (int) Math.round(centerSteps - pivotSteps);
+        Log.d(TAG, String.format("Arc of %f degrees at %f mm, steps L/R = %d/%d", degrees, radius, leftSteps, rightSteps));
+
+        // forwards is counterclockwise on the left wheel and clockwise on the right
+        smoothMotion(Math.abs(leftSteps), Math.abs(rightSteps), ULN2003Resolution.HALF,
+                leftSteps >= 0 ? Direction.COUNTERCLOCKWISE : Direction.CLOCKWISE,
+                rightSteps >= 0 ? Direction.CLOCKWISE : Direction.COUNTERCLOCKWISE,
+                STRAIGHT_PROFILE);
+    }
+
+    // the wheels don't start until the pen has reached its angle
+    private void beginMove(int leftSteps, int rightSteps) {
+        long remaining = mPenSettledAt - mClock.nanoTime();
+        if (remaining > 0) {
+            mClock.sleepNanos(remaining);
+            mPenWaitNanos += remaining;
+        }
+        mScheduler.begin(leftSteps, rightSteps);
+    }
+
+    // a settle pause outside turn(), counted as turning time
+    private void turnSettle() {
+        long start = mClock.nanoTime();
+        settle();
+        mTurnNanos += mClock.nanoTime() - start;
+    }
+
+    // sliced so a cancel doesn't wait out the whole pause
+    private void settle() {
+        for (long slept = 0; (slept < SETTLE_NANOS) && !isCancelled(); slept += SETTLE_SLICE_NANOS) {
+            mClock.sleepNanos(Math.min(SETTLE_SLICE_NANOS, SETTLE_NANOS - slept));
+        }
+    }
+
+    /**
+     * Checked every step, a cancelled move ramps down from its current speed and the rest of a turn is skipped
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        mCancellationToken = cancellationToken;
+    }
+
+    private boolean isCancelled() {
+        return (mCancellationToken != null) && mCancellationToken.isCancelled();
+    }
+
+    /**
+     * Lift the pen once a cancelled move has come to rest, returns the cancel-to-stop latency in nanos
+     */
+    public long stopAfterCancel() {
+
+        setMarkerPressure(0);
+
+        if (mCancellationToken == null) {
+            return -1;
+        }
+        long latency = mCancellationToken.markStopped();
+        Log.d(TAG, String.format("Stopped %.1f ms after cancel", latency / 1000000.0));
+        return latency;
+    }
+
+    // timed as a whole, cancelled or not
+    private void turn(double turnDegrees, boolean settle) {
+        long start = mClock.nanoTime();
+        turnPhases(turnDegrees, settle);
+        mTurnNanos += mClock.nanoTime() - start;
+    }
+
+    // settle adds a pause around each phase of the turn
+    private void turnPhases(double turnDegrees, boolean settle) {
+
+        // one calibration for the whole turn, a new one applies from the next move
+        RobotConfig.Snapshot config = mRobotConfig.getSnapshot();
+
+        if (settle) {
+            settle();
         }
 
         Direction leftDirection, rightDirection;
 
         int steps = (int) Math.abs(turnDegrees * STEPS_PER_DEG * 2);
         Log.d(TAG, String.format("Num steps = %d for %f degrees", steps, turnDegrees));
-
-        StepDuration stepDuration = new StepDuration(0, minSpeed);
+        mTurns++;
 
         // left turn
         if (turnDegrees < 0) {
             
             // slop steps backwards
             mLeftStepper.setDirection(Direction.CLOCKWISE);
-            for (int i = 0; i < mRobotConfig.getSlopStepsLeftBack(); i++) {
-                mLeftStepper.performStep(stepDuration);
-            }
+            slopSteps(config.slopStepsLeftBack, 0);
 
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Turn could not sleep", e);
+            if (settle) {
+                settle();
             }
+            if (isCancelled()) return;
 
             // pivot turn
             leftDirection = Direction.CLOCKWISE;
             rightDirection = Direction.CLOCKWISE;
-            smoothMotion(steps, ULN2003Resolution.FULL, leftDirection, rightDirection, minSpeed, maxSpeed, rampRate);
+            smoothMotion(steps, ULN2003Resolution.FULL, leftDirection, rightDirection, TURN_PROFILE);
 
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Turn could not sleep", e);
+            if (settle) {
+                settle();
             }
+            if (isCancelled()) return;
 
             // slop steps forwards
             mLeftStepper.setDirection(Direction.COUNTERCLOCKWISE);
-            for (int i = 0; i < mRobotConfig.getSlopStepsLeftFwd(); i++) {
-                mLeftStepper.performStep(stepDuration);
-            }
+            slopSteps(config.slopStepsLeftFwd, 0);
         }
 
         // right turn
@@ -122,39 +276,40 @@ public class MovementControl {
 
             // slop steps backwards
             mRightStepper.setDirection(Direction.COUNTERCLOCKWISE);
-            for (int i = 0; i < mRobotConfig.getSlopStepsRightBack(); i++) {
-                mRightStepper.performStep(stepDuration);
-            }
+            slopSteps(0, config.slopStepsRightBack);
 
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Turn could not sleep", e);
+            if (settle) {
+                settle();
             }
+            if (isCancelled()) return;
 
             // pivot turn
             leftDirection = Direction.COUNTERCLOCKWISE;
             rightDirection = Direction.COUNTERCLOCKWISE;
-            smoothMotion(steps, ULN2003Resolution.FULL, leftDirection, rightDirection, minSpeed, maxSpeed, rampRate);
+            smoothMotion(steps, ULN2003Resolution.FULL, leftDirection, rightDirection, TURN_PROFILE);
 
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Turn could not sleep", e);
+            if (settle) {
+                settle();
             }
+            if (isCancelled()) return;
 
             // slop steps forwards
             mRightStepper.setDirection(Direction.CLOCKWISE);
-            for (int i = 0; i < mRobotConfig.getSlopStepsRightFwd(); i++) {
-                mRightStepper.performStep(stepDuration);
-            } 
+            slopSteps(0, config.slopStepsRightFwd);
         }
 
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Turn could not sleep", e);
+        if (settle) {
+            settle();
+        }
+    }
+
+    // take up gear backlash at the slowest turn speed, one wheel at a time
+    private void slopSteps(int leftSteps, int rightSteps) {
+        beginMove(leftSteps, rightSteps);
+        while (mScheduler.hasNext() && !isCancelled()) {
+            mScheduler.tick(TURN_PROFILE.getDelay(0));
         }
+        mSlopSteps += leftSteps + rightSteps;
     }
 
     public void constantMotion(int numSteps, ULN2003Resolution res, Direction leftDirection, Direction rightDirection, int stepDelay) {
@@ -164,92 +319,161 @@ public class MovementControl {
         mLeftStepper.setResolution(res);
         mRightStepper.setResolution(res);
 
-        int stepCount = 0; // total steps moved
-        StepDuration stepDuration = new StepDuration(0, stepDelay);
-        while (stepCount < numSteps) {
-            mLeftStepper.performStep(stepDuration);
-            mRightStepper.performStep(stepDuration);
-            stepCount++;
+        beginMove(numSteps, numSteps);
+        while (mScheduler.hasNext() && !isCancelled()) {
+            mScheduler.tick(stepDelay);
         }
     }
 
     public void smoothMotion(int numSteps, ULN2003Resolution res, Direction leftDirection, Direction rightDirection, int stepDelaySlowest, int stepDelayFastest, int rampRate) {
+        smoothMotion(numSteps, numSteps, res, leftDirection, rightDirection, MotionProfile.get(stepDelaySlowest, stepDelayFastest, rampRate));
+    }
+
+    public void smoothMotion(int numSteps, ULN2003Resolution res, Direction leftDirection, Direction rightDirection, MotionProfile profile) {
+        smoothMotion(numSteps, numSteps, res, leftDirection, rightDirection, profile);
+    }
+
+    /*
+     * Replays the profile's delay table: ramp up to cruise (or to half way on short moves), cruise, ramp back down.
+     * Both wheels step in the same tick; with unequal step counts the ramp follows the wheel with more steps
+     * and the other is interleaved, so both finish together.
+     * On cancel the move is cut short and ramps down from wherever it is.
+     */
+    public void smoothMotion(int leftSteps, int rightSteps, ULN2003Resolution res, Direction leftDirection, Direction rightDirection, MotionProfile profile) {
 
         mLeftStepper.setDirection(leftDirection);
         mRightStepper.setDirection(rightDirection);
         mLeftStepper.setResolution(res);
         mRightStepper.setResolution(res);
 
-        int stepCount = 0;      // total steps moved
-        int stepDelay = stepDelaySlowest; 
-        StepDuration stepDuration = new StepDuration(0, stepDelay);
+        beginMove(leftSteps, rightSteps);
+
+        int numSteps = mScheduler.getTickCount();
+        int stepCount = 0;      // total ticks moved
+        int rampSteps = profile.getRampSteps();
+        int j = 0;              // index into the profile, 0 = slowest
 
         /******  RAMP-UP / ACCELERATION  ******/
-        while(stepDelay > stepDelayFastest) {
+        while (j < rampSteps && stepCount < numSteps) {
+
+            if (isCancelled()) {
+                // last step went out at the previous delay
+                j = Math.max(j - 1, 0);
+                break;
+            }
 
-            stepDuration = new StepDuration(0, stepDelay);
-            
             // move a single step
-            mLeftStepper.performStep(stepDuration);
-            mRightStepper.performStep(stepDuration);
+            mScheduler.tick(profile.getDelay(j));
             stepCount++;
-//            Log.d(TAG, "stepCount =  " +  stepCount + " stepDelay = " + stepDelay);
             if (stepCount > numSteps/2) break;
 
             // bump up the speed a bit
-            stepDelay -= rampRate;
+            j++;
         }
 
         // when to begin decceleration
         int startDeccel = numSteps - stepCount;
 
-//        Log.d(TAG, "Constant rate...");
-
         /******  CONSTANT RATE  ******/
-        stepDuration = new StepDuration(0, stepDelay);
-        while (stepCount < startDeccel) {
-            mLeftStepper.performStep(stepDuration);
-            mRightStepper.performStep(stepDuration);
+        while (stepCount < startDeccel && !isCancelled()) {
+            mScheduler.tick(profile.getDelay(j));
             stepCount++;
-//            Log.d(TAG, "stepCount =  " +  stepCount + " stepDelay = " + stepDelay);
         }
 
-//        Log.d(TAG, "Deccelerating...");
+        // cancelled: only the ramp down from the current speed is left
+        if (isCancelled()) {
+            numSteps = Math.min(numSteps, stepCount + j);
+        }
 
         /******  RAMP-DOWN / DECCELERATION  ******/
-        while (stepDelay < stepDelaySlowest) {
-            stepDuration = new StepDuration(0, stepDelay);
-            mLeftStepper.performStep(stepDuration);
-            mRightStepper.performStep(stepDuration);
+        while (j > 0 && stepCount < numSteps) {
+            mScheduler.tick(profile.getDelay(j));
             stepCount++;
-//            Log.d(TAG, "stepCount =  " +  stepCount + " stepDelay = " + stepDelay);
             if (stepCount >= numSteps) break;
 
             // slow down a bit
-            stepDelay += rampRate;
+            j--;
         }
 
         // finish any last steps at slowest speed
-        stepDuration = new StepDuration(0, stepDelay);
-        while (stepCount < numSteps) {
-            mLeftStepper.performStep(stepDuration);
-            mRightStepper.performStep(stepDuration);
+        while (stepCount < numSteps && !isCancelled()) {
+            mScheduler.tick(profile.getDelay(j));
             stepCount++;
-//            Log.d(TAG, "stepCount =  " +  stepCount + " stepDelay = " + stepDelay);
         }
     }
 
+    public int getTurnCount() {
+        return mTurns;
+    }
+
+    /**
+     * Time spent in point turns, their settle pauses and slop steps, in nanos
+     */
+    public long getTurnNanos() {
+        return mTurnNanos;
+    }
+
+    public long getSlopStepCount() {
+        return mSlopSteps;
+    }
+
+    /**
+     * Time spent holding scheduled steps, see DualStepScheduler
+     */
+    public long getTickNanos() {
+        return mScheduler.getHeldNanos();
+    }
+
+    /**
+     * Time moves waited for the pen servo to finish travelling, in nanos
+     */
+    public long getPenWaitNanos() {
+        return mPenWaitNanos;
+    }
+
+    /**
+     * Pen servo writes issued and suppressed as no-ops
+     */
+    public ActuatorState getPenState() {
+        return mPenState;
+    }
+
+    public void resetCounters() {
+        mTurns = 0;
+        mTurnNanos = 0;
+        mSlopSteps = 0;
+        mPenWaitNanos = 0;
+        mPenSettledAt = 0;
+        mPenState.resetCounters();
+        mScheduler.resetCounters();
+    }
+
     public void setMarkerPressure(int level) {
-        Log.d(TAG, String.format("setMarkerPressure(%d); (pos=%d)", level, mRobotConfig.getServoPos(level)));
-        movePen(mRobotConfig.getServoPos(level));
+        int angle = mRobotConfig.getSnapshot().getServoPos(level);
+        if (movePen(angle)) {
+            Log.d(TAG, String.format("setMarkerPressure(%d); (pos=%d)", level, angle));
+        }
     }
 
-    public void movePen(int angle) {
+    /**
+     * Write the servo only if the angle changes, the next move then waits out the pen's travel.
+     * Returns false if the write was dropped as a no-op.
+     */
+    public boolean movePen(int angle) {
+
+        int travel = mPenState.isKnown() ? Math.abs(angle - mPenState.getValue()) : PEN_FULL_TRAVEL_DEGREES;
+        if (!mPenState.update(angle)) {
+            return false;
+        }
+
         try {
             mPenServo.setAngle(angle);
         } catch (IOException e) {
             Log.e(TAG, "Could not set angle on pen servo", e);
+            mPenState.invalidate();
         }
+        mPenSettledAt = mClock.nanoTime() + travel * PEN_NANOS_PER_DEGREE;
+        return true;
     }
 
     public void close() {
@@ -0,0 +1,116 @@
+package com.deeplocal.drawbot;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * Rotates the camera frame 90 degrees counter-clockwise and applies auto-levels and
+ * histogram equalization as one composed lookup table, writing into buffers that are
+ * reused from frame to frame.
+ */
+public class NormalizeStage {
+
+    private static final String TAG = "abc";
+
+    private final LevelsEngine mLevelsEngine = new LevelsEngine();
+
+    private final int[] mLevelsHistogram = new int[256];
+    private final int[] mEqualizeTable = new int[256];
+    private final byte[] mLutBytes = new byte[256];
+    private final Mat mLut = new Mat(1, 256, CvType.CV_8UC1);
+
+    private final Mat mTransposed = new Mat();
+    private final Mat mNormalized = new Mat();
+
+    private int mAllocations;
+
+    /**
+     * Normalize a CV_8UC1 frame. The returned Mat is reused by the next call.
+     */
+    public Mat normalize(Mat grayMat, double alpha, int beta, boolean autoLevels) {
+
+        mAllocations = 0;
+        ensureBuffer(mTransposed, grayMat.cols(), grayMat.rows());
+        ensureBuffer(mNormalized, grayMat.cols(), grayMat.rows());
+
+        // rotation doesn't change the histogram, so solve levels on the source frame
+        mLevelsEngine.computeHistogram(grayMat);
+        mLevelsEngine.solve(alpha, beta, autoLevels);
+        byte[] levelsTable = mLevelsEngine.getLevelsTable();
+        composeEqualization(mLevelsEngine.getHistogram(), levelsTable, (int) grayMat.total());
+        mLut.put(0, 0, mLutBytes);
+
+        // exact 90 degree counter-clockwise turn
+        Core.transpose(grayMat, mTransposed);
+        Core.flip(mTransposed, mNormalized, 0);
+        Core.LUT(mNormalized, mLut, mNormalized);
+
+        if (mAllocations > 0) {
+            Log.d(TAG, String.format("Normalize stage allocated %d Mats", mAllocations));
+        }
+
+        return mNormalized;
+    }
+
+    public double getAlpha() {
+        return mLevelsEngine.getAlpha();
+    }
+
+    public int getBeta() {
+        return mLevelsEngine.getBeta();
+    }
+
+    /**
+     * Number of intermediate Mats (re)allocated by the last call, zero once the frame size is stable
+     */
+    public int getAllocationCount() {
+        return mAllocations;
+    }
+
+    /*
+     * Builds equalize(levels(v)) for every gray level v. The equalization table follows
+     * Imgproc.equalizeHist, computed on the histogram the levels table would produce.
+     */
+    private void composeEqualization(int[] histogram, byte[] levelsTable, int total) {
+
+        Arrays.fill(mLevelsHistogram, 0);
+        for (int v = 0; v < histogram.length; v++) {
+            mLevelsHistogram[levelsTable[v] & 0xFF] += histogram[v];
+        }
+
+        // first occupied level maps to zero, the rest spread over the full range
+        int first = 0;
+        while ((first < 255) && (mLevelsHistogram[first] == 0)) {
+            first++;
+        }
+
+        int[] eqTable = mEqualizeTable;
+        Arrays.fill(eqTable, 0);
+        if (mLevelsHistogram[first] == total) {
+            eqTable[first] = first;
+        } else {
+            float scale = 255f / (total - mLevelsHistogram[first]);
+            int sum = 0;
+            for (int i = first + 1; i < 256; i++) {
+                sum += mLevelsHistogram[i];
+                eqTable[i] = Math.min(255, (int) Math.rint(sum * scale));
+            }
+        }
+
+        for (int v = 0; v < 256; v++) {
+            mLutBytes[v] = (byte) eqTable[levelsTable[v] & 0xFF];
+        }
+    }
+
+    private void ensureBuffer(Mat buffer, int rows, int cols) {
+        if ((buffer.rows() != rows) || (buffer.cols() != cols) || (buffer.type() != CvType.CV_8UC1)) {
+            buffer.create(rows, cols, CvType.CV_8UC1);
+            mAllocations++;
+        }
+    }
+}
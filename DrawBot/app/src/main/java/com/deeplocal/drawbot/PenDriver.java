@@ -0,0 +1,13 @@
+package com.deeplocal.drawbot;
+
+import java.io.IOException;
+
+/**
+ * The servo that raises and lowers the marker.
+ */
+public interface PenDriver {
+
+    void setAngle(double angle) throws IOException;
+
+    void close() throws IOException;
+}
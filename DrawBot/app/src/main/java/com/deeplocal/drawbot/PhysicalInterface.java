@@ -2,8 +2,6 @@ package com.deeplocal.drawbot;
 
 import android.util.Log;
 
-import com.google.android.things.contrib.driver.apa102.Apa102;
-
 import java.io.IOException;
 
 import android.graphics.Color;
@@ -12,66 +10,97 @@ public class PhysicalInterface {
 
     private static final String TAG = "drawbot";
 
-    public Apa102 mApa102;
+    private static final String LED_SPI_BUS = "SPI3.0";
+    private static final long CLOSE_TIMEOUT_MS = 500;
+
+    public LedDriver mLedDriver;
+    private LedAnimator mLedAnimator;
+
+    // off-device: no animator thread, colours are written straight through on the caller's thread
+    private final boolean mSynchronous;
 
     public PhysicalInterface() {
 
         try {
-            mApa102 = new Apa102("SPI3.0", Apa102.Mode.BGR);
+            mLedDriver = new Apa102LedDriver(LED_SPI_BUS);
         } catch (IOException e) {
             Log.e(TAG, "LED setup failed", e);
         }
+
+        mLedAnimator = new LedAnimator(mLedDriver);
+        mLedAnimator.start();
+        mSynchronous = false;
+    }
+
+    /**
+     * Build against any LED implementation, e.g. a recording driver off-device. Nothing runs on a
+     * thread of its own: each call writes the colour it ends on, on one caller thread only.
+     */
+    public PhysicalInterface(LedDriver ledDriver) {
+        mLedDriver = ledDriver;
+        mLedAnimator = new LedAnimator(mLedDriver);
+        mSynchronous = true;
     }
 
     public void writeLedRGB(int red, int green, int blue) {
-        int[] colors = new int[] {Color.rgb(red, green, blue)};
-        try {
-            mApa102.write(colors);
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing color to LED strip", e);
-        }
+        writeLED(Color.rgb(red, green, blue));
     }
 
+    /**
+     * Show a colour until the next LED call, stops any running pattern. Doesn't block, and a colour
+     * that is already set is dropped here without allocating, so the motion thread can call it every line.
+     */
     public void writeLED(int ledColor) {
-        int[] colors = new int[] {ledColor};
-        try {
-            mApa102.write(colors);
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing color to LED strip", e);
+        if (mSynchronous) {
+            mLedAnimator.showNow(ledColor);
+        } else {
+            mLedAnimator.playSolid(ledColor);
         }
     }
 
     /**
-     * Blocking I/O method to hold the LED on for a specific
+     * Play an LED pattern on the animator thread. Doesn't block.
      */
-    public void holdLED(int color, int duration) {
-        writeLED(color);
-        try {
-            Thread.sleep(duration);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "LED could not sleep", e);
+    public void playLED(LedPattern pattern) {
+        if (mSynchronous) {
+            mLedAnimator.showNow(pattern.getColor(pattern.size() - 1));
+        } else {
+            mLedAnimator.play(pattern);
         }
     }
 
     /**
-     * Blocking I/O method to blink the LED for a specific duration
+     * LED writes sent to the strip and skipped as no-ops
      */
-    public void flashLED(int onColor, int onDuration, int offColor, int offDuration) {
-        holdLED(onColor, onDuration);
-        holdLED(offColor, offDuration);
+    public String formatLedCounters() {
+        return String.format("%d issued, %d suppressed", mLedAnimator.getWriteCount(), mLedAnimator.getSkippedCount());
+    }
+
+    public LedAnimator getLedAnimator() {
+        return mLedAnimator;
     }
 
     public void close() {
 
         Log.d(TAG, "Closing LED interface...");
 
-        if (mApa102 != null) {
+        // let the last colour reach the strip before it closes
+        if (!mSynchronous) {
+            mLedAnimator.quit();
+            try {
+                mLedAnimator.join(CLOSE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted waiting for LED thread", e);
+            }
+        }
+
+        if (mLedDriver != null) {
             try {
-                mApa102.close();
+                mLedDriver.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error closing LED interface", e);
             } finally {
-                mApa102 = null;
+                mLedDriver = null;
             }
         }
     }
@@ -0,0 +1,120 @@
+package com.deeplocal.drawbot;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Two-stage portrait pipeline. Capture, preprocessing and line planning run on their own processing
+ * thread while the motion thread draws, and finished plans wait in a small bounded queue until the
+ * robot is free. The next visitor's photo can be taken while a portrait waits and planned while it is drawn.
+ */
+public class PortraitPipeline {
+
+    private static final String TAG = "drawbot";
+
+    public static final int MAX_WAITING_PLANS = 2;
+
+    private final HandlerThread mProcessingThread;
+    private final Handler mProcessingHandler;
+    private final ArrayBlockingQueue<LinePlan> mPlans = new ArrayBlockingQueue<>(MAX_WAITING_PLANS);
+
+    // captures are numbered in the order they're taken, images come back and are planned in that order
+    private long mTaken;            // captures started
+    private long mFinished;         // captures that came back, planned or not
+    private long mCancelledBelow;   // captures numbered below this were cancelled, their plans are dropped
+
+    public PortraitPipeline() {
+        mProcessingThread = new HandlerThread("ProcessingThread");
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper());
+    }
+
+    /**
+     * Camera callbacks and image processing go here
+     */
+    public Handler getProcessingHandler() {
+        return mProcessingHandler;
+    }
+
+    /**
+     * Claim the camera for a new portrait, false if a live one is already in flight or no plan could be queued.
+     * A cancelled capture still in flight doesn't block the next one.
+     */
+    public synchronized boolean beginCapture() {
+        if (isCapturing() || (mPlans.remainingCapacity() == 0)) {
+            return false;
+        }
+        mTaken++;
+        return true;
+    }
+
+    /**
+     * Drop the plans of every capture taken so far that hasn't come back yet
+     */
+    public synchronized void cancelCapture() {
+        mCancelledBelow = mTaken;
+    }
+
+    public synchronized boolean isCapturing() {
+        return mTaken > Math.max(mFinished, mCancelledBelow);
+    }
+
+    /**
+     * True if the next capture to come back was cancelled
+     */
+    public synchronized boolean isNextCaptureCancelled() {
+        return mFinished < mCancelledBelow;
+    }
+
+    /**
+     * Called once per capture with its plan, or null if there is nothing to draw.
+     * Returns true if the plan was queued, false if it was empty, cancelled or the queue is full.
+     */
+    public synchronized boolean finishCapture(LinePlan plan) {
+        boolean cancelled = isNextCaptureCancelled();
+        mFinished++;
+        if (cancelled) {
+            Log.d(TAG, "Dropping plan of a cancelled capture");
+            return false;
+        }
+        return (plan != null) && offer(plan);
+    }
+
+    /**
+     * Swap every waiting plan for this one, e.g. a re-plan of the last photo
+     */
+    public synchronized boolean replace(LinePlan plan) {
+        mPlans.clear();
+        return offer(plan);
+    }
+
+    /**
+     * Hand a finished plan to the motion side, false if the queue is full
+     */
+    public boolean offer(LinePlan plan) {
+        return mPlans.offer(plan);
+    }
+
+    /**
+     * Next plan to draw, or null if none is waiting
+     */
+    public LinePlan poll() {
+        return mPlans.poll();
+    }
+
+    public int getWaitingCount() {
+        return mPlans.size();
+    }
+
+    public void clear() {
+        mPlans.clear();
+    }
+
+    public void quit() {
+        mProcessingHandler.removeCallbacksAndMessages(null);
+        mProcessingThread.quitSafely();
+    }
+}
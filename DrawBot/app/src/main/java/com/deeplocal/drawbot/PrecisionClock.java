@@ -0,0 +1,53 @@
+package com.deeplocal.drawbot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * System clock that hits sub-millisecond deadlines: parks for most of the wait, then spins on
+ * nanoTime for the last stretch, where a plain sleep would overshoot by the scheduler's wakeup latency.
+ */
+public class PrecisionClock implements MotionClock {
+
+    private static final long DEFAULT_SPIN_NANOS = 200000; // wakeup latency to cover by spinning
+
+    private final long mSpinNanos;
+
+    public PrecisionClock() {
+        this(DEFAULT_SPIN_NANOS);
+    }
+
+    public PrecisionClock(long spinNanos) {
+        mSpinNanos = spinNanos;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void sleepNanos(long nanos) {
+        if (nanos > 0) {
+            sleepUntil(System.nanoTime() + nanos);
+        }
+    }
+
+    /**
+     * Wait until System.nanoTime() reaches the deadline
+     */
+    public void sleepUntil(long deadline) {
+
+        long remaining = deadline - System.nanoTime();
+
+        // coarse wait, parkNanos may return early so check again
+        while (remaining > mSpinNanos) {
+            LockSupport.parkNanos(remaining - mSpinNanos);
+            remaining = deadline - System.nanoTime();
+        }
+
+        // fine wait
+        while (deadline - System.nanoTime() > 0) {
+            // spin
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.deeplocal.drawbot;
+
+import java.util.Arrays;
+
+/**
+ * In-memory LED strip that keeps every written color with its clock time.
+ */
+public class RecordingLedDriver implements LedDriver {
+
+    private final MotionClock mClock;
+
+    private int[] mColors = new int[64];
+    private long[] mTimes = new long[64];
+    private int mCount;
+
+    public RecordingLedDriver(MotionClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public void write(int[] colors) {
+        if (mCount == mColors.length) {
+            mColors = Arrays.copyOf(mColors, mCount * 2);
+            mTimes = Arrays.copyOf(mTimes, mCount * 2);
+        }
+        mColors[mCount] = colors[0];
+        mTimes[mCount] = mClock.nanoTime();
+        mCount++;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int getWriteCount() {
+        return mCount;
+    }
+
+    public int getColor(int index) {
+        return mColors[index];
+    }
+
+    public long getTimeNanos(int index) {
+        return mTimes[index];
+    }
+
+    public void reset() {
+        mCount = 0;
+    }
+}
@@ -0,0 +1,50 @@
+package com.deeplocal.drawbot;
+
+import java.util.Arrays;
+
+/**
+ * In-memory pen servo that keeps every commanded angle with its clock time.
+ */
+public class RecordingPenDriver implements PenDriver {
+
+    private final MotionClock mClock;
+
+    private double[] mAngles = new double[64];
+    private long[] mTimes = new long[64];
+    private int mCount;
+
+    public RecordingPenDriver(MotionClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public void setAngle(double angle) {
+        if (mCount == mAngles.length) {
+            mAngles = Arrays.copyOf(mAngles, mCount * 2);
+            mTimes = Arrays.copyOf(mTimes, mCount * 2);
+        }
+        mAngles[mCount] = angle;
+        mTimes[mCount] = mClock.nanoTime();
+        mCount++;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public int getWriteCount() {
+        return mCount;
+    }
+
+    public double getAngle(int index) {
+        return mAngles[index];
+    }
+
+    public long getTimeNanos(int index) {
+        return mTimes[index];
+    }
+
+    public void reset() {
+        mCount = 0;
+    }
+}
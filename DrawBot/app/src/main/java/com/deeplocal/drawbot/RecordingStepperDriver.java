@@ -0,0 +1,85 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.Direction;
+import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
+import com.polidea.androidthings.driver.uln2003.driver.ULN2003Resolution;
+
+/**
+ * In-memory stepper that counts steps and lets the clock pass the step duration instead of driving coils.
+ */
+public class RecordingStepperDriver implements StepperDriver {
+
+    private final MotionClock mClock;
+
+    private Direction mDirection = Direction.CLOCKWISE;
+    private ULN2003Resolution mResolution = ULN2003Resolution.HALF;
+
+    private long mClockwiseSteps;
+    private long mCounterClockwiseSteps;
+    private long mStepNanos;
+
+    public RecordingStepperDriver(MotionClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public void setDirection(Direction direction) {
+        mDirection = direction;
+    }
+
+    @Override
+    public void setResolution(ULN2003Resolution resolution) {
+        mResolution = resolution;
+    }
+
+    @Override
+    public void performStep(StepDuration stepDuration) {
+
+        if (mDirection == Direction.CLOCKWISE) {
+            mClockwiseSteps++;
+        } else {
+            mCounterClockwiseSteps++;
+        }
+
+        long nanos = stepDuration.getMillis() * 1000000 + stepDuration.getNanos();
+        mStepNanos += nanos;
+        mClock.sleepNanos(nanos);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public Direction getDirection() {
+        return mDirection;
+    }
+
+    public ULN2003Resolution getResolution() {
+        return mResolution;
+    }
+
+    public long getClockwiseSteps() {
+        return mClockwiseSteps;
+    }
+
+    public long getCounterClockwiseSteps() {
+        return mCounterClockwiseSteps;
+    }
+
+    public long getTotalSteps() {
+        return mClockwiseSteps + mCounterClockwiseSteps;
+    }
+
+    /**
+     * Sum of the durations of every step performed
+     */
+    public long getStepNanos() {
+        return mStepNanos;
+    }
+
+    public void reset() {
+        mClockwiseSteps = 0;
+        mCounterClockwiseSteps = 0;
+        mStepNanos = 0;
+    }
+}
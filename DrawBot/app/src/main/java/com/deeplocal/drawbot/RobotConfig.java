@@ -2,11 +2,14 @@ package com.deeplocal.drawbot;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.text.TextUtils;
+import android.util.Log;
 
 import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-public class RobotConfig {
+public class RobotConfig implements CalibrationSource {
+
+    private static final String TAG = "drawbot";
 
     // Configuration store
     private static final String STORE_NAME = "robot-config";
@@ -19,6 +22,9 @@ public class RobotConfig {
     private static final int DEFAULT_SPACINGADJUST_RIGHT = 0;
     private static final int DEFAULT_SPACINGADJUST_LEFT = 0;
     private static final String DEFAULT_SERVOPOS = "115,105,80,65";
+    private static final int DEFAULT_TRAVEL_SLOWEST = 3000000;
+    private static final int DEFAULT_TRAVEL_FASTEST = 350000;
+    private static final int DEFAULT_TRAVEL_RAMP = 40000;
 
     // Configuration store keys
     public static final String KEY_SLOP_FWD_R = "slop-steps-fwd-right";
@@ -28,6 +34,9 @@ public class RobotConfig {
     public static final String KEY_SPACING_R = "spacing-adjust-right";    // tenths of mm
     public static final String KEY_SPACING_L = "spacing-adjust-left";     // tenths of mm
     public static final String KEY_SERVO_POS = "servo-position";
+    public static final String KEY_TRAVEL_SLOWEST = "travel-step-delay-slowest";  // nanos
+    public static final String KEY_TRAVEL_FASTEST = "travel-step-delay-fastest";  // nanos
+    public static final String KEY_TRAVEL_RAMP = "travel-ramp-rate";              // nanos per step
 
     private static RobotConfig sInstance;
     public static synchronized RobotConfig getInstance(Context context) {
@@ -38,11 +47,132 @@ public class RobotConfig {
         return sInstance;
     }
 
+    /**
+     * Calibration values parsed once from the configuration store. Never changes after it is built,
+     * so a move can read one snapshot and use it throughout.
+     */
+    public static final class Snapshot implements CalibrationSource {
+
+        public final int slopStepsRightFwd;
+        public final int slopStepsRightBack;
+        public final int slopStepsLeftFwd;
+        public final int slopStepsLeftBack;
+        public final int spacingAdjustRight;    // tenths of mm
+        public final int spacingAdjustLeft;     // tenths of mm
+        public final MotionProfile travelProfile;
+
+        private final int[] mServoPositions;
+
+        public Snapshot(int slopStepsRightFwd, int slopStepsRightBack, int slopStepsLeftFwd, int slopStepsLeftBack,
+                        int spacingAdjustRight, int spacingAdjustLeft, int[] servoPositions,
+                        int travelSlowest, int travelFastest, int travelRampRate) {
+            this.slopStepsRightFwd = slopStepsRightFwd;
+            this.slopStepsRightBack = slopStepsRightBack;
+            this.slopStepsLeftFwd = slopStepsLeftFwd;
+            this.slopStepsLeftBack = slopStepsLeftBack;
+            this.spacingAdjustRight = spacingAdjustRight;
+            this.spacingAdjustLeft = spacingAdjustLeft;
+            mServoPositions = servoPositions.clone();
+
+            // bad stored values would hand zero or negative step delays to the drivers
+            if (!isValidTravel(travelSlowest, travelFastest, travelRampRate)) {
+                Log.e(TAG, String.format("Bad travel profile %d/%d/%d, using defaults",
+                        travelSlowest, travelFastest, travelRampRate));
+                travelSlowest = DEFAULT_TRAVEL_SLOWEST;
+                travelFastest = DEFAULT_TRAVEL_FASTEST;
+                travelRampRate = DEFAULT_TRAVEL_RAMP;
+            }
+            travelProfile = MotionProfile.get(travelSlowest, travelFastest, travelRampRate);
+        }
+
+        /**
+         * The built-in calibration, as used before any calibration file is applied
+         */
+        public static Snapshot defaults() {
+            return new Snapshot(DEFAULT_SLOPSTEPS_RIGHTFWD, DEFAULT_SLOPSTEPS_RIGHTBACK,
+                    DEFAULT_SLOPSTEPS_LEFTFWD, DEFAULT_SLOPSTEPS_LEFTBACK,
+                    DEFAULT_SPACINGADJUST_RIGHT, DEFAULT_SPACINGADJUST_LEFT,
+                    parseServoPositions(DEFAULT_SERVOPOS),
+                    DEFAULT_TRAVEL_SLOWEST, DEFAULT_TRAVEL_FASTEST, DEFAULT_TRAVEL_RAMP);
+        }
+
+        private static Snapshot fromStore(SharedPreferences store) {
+            return new Snapshot(store.getInt(KEY_SLOP_FWD_R, DEFAULT_SLOPSTEPS_RIGHTFWD),
+                    store.getInt(KEY_SLOP_BACK_R, DEFAULT_SLOPSTEPS_RIGHTBACK),
+                    store.getInt(KEY_SLOP_FWD_L, DEFAULT_SLOPSTEPS_LEFTFWD),
+                    store.getInt(KEY_SLOP_BACK_L, DEFAULT_SLOPSTEPS_LEFTBACK),
+                    store.getInt(KEY_SPACING_R, DEFAULT_SPACINGADJUST_RIGHT),
+                    store.getInt(KEY_SPACING_L, DEFAULT_SPACINGADJUST_LEFT),
+                    parseServoPositions(store.getString(KEY_SERVO_POS, DEFAULT_SERVOPOS)),
+                    store.getInt(KEY_TRAVEL_SLOWEST, DEFAULT_TRAVEL_SLOWEST),
+                    store.getInt(KEY_TRAVEL_FASTEST, DEFAULT_TRAVEL_FASTEST),
+                    store.getInt(KEY_TRAVEL_RAMP, DEFAULT_TRAVEL_RAMP));
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return this;
+        }
+
+        /**
+         * Servo angle for the given marker pressure level, 0 if there is none
+         */
+        public int getServoPos(int pos) {
+            if ((pos < 0) || (pos >= mServoPositions.length)) {
+                return 0;
+            }
+            return mServoPositions[pos];
+        }
+
+        private static int[] parseServoPositions(String positionSet) {
+            String[] servoPos = positionSet.split(",");
+            int[] positions = new int[servoPos.length];
+            try {
+                for (int i = 0; i < servoPos.length; i++) {
+                    positions[i] = Integer.valueOf(servoPos[i].trim());
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, String.format("Bad servo positions \"%s\", using defaults", positionSet), e);
+                return parseServoPositions(DEFAULT_SERVOPOS);
+            }
+            return positions;
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the thread that applied the calibration
+         */
+        void onConfigChanged(Snapshot snapshot);
+    }
+
     private SharedPreferences mConfigStore;
 
+    // replaced whole on every calibration update, readers never see a half-applied one
+    private volatile Snapshot mSnapshot;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
     private RobotConfig(Context context) {
         // Init the configuration store
         mConfigStore = context.getSharedPreferences(STORE_NAME, Context.MODE_PRIVATE);
+        mSnapshot = Snapshot.fromStore(mConfigStore);
+    }
+
+    /**
+     * Current calibration, read it once per move
+     */
+    @Override
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
     }
 
     /**
@@ -50,15 +180,45 @@ public class RobotConfig {
      * @param tuningParams Set of calibration parameters
      */
     public void updateCalibration(HashMap<String, String> tuningParams) {
-        mConfigStore.edit()
+        SharedPreferences.Editor editor = mConfigStore.edit()
                 .putInt(KEY_SLOP_FWD_R, getNumericParam(KEY_SLOP_FWD_R, tuningParams))
                 .putInt(KEY_SLOP_FWD_L, getNumericParam(KEY_SLOP_FWD_L, tuningParams))
                 .putInt(KEY_SLOP_BACK_R, getNumericParam(KEY_SLOP_BACK_R, tuningParams))
                 .putInt(KEY_SLOP_BACK_L, getNumericParam(KEY_SLOP_BACK_L, tuningParams))
                 .putInt(KEY_SPACING_R, getNumericParam(KEY_SPACING_R, tuningParams))
                 .putInt(KEY_SPACING_L, getNumericParam(KEY_SPACING_L, tuningParams))
-                .putString(KEY_SERVO_POS, tuningParams.get(KEY_SERVO_POS))
-                .apply();
+                .putString(KEY_SERVO_POS, tuningParams.get(KEY_SERVO_POS));
+
+        // travel profile is optional, older calibration files keep the defaults
+        if (tuningParams.containsKey(KEY_TRAVEL_SLOWEST)) {
+            int slowest = getNumericParam(KEY_TRAVEL_SLOWEST, tuningParams);
+            int fastest = getNumericParam(KEY_TRAVEL_FASTEST, tuningParams);
+            int rampRate = getNumericParam(KEY_TRAVEL_RAMP, tuningParams);
+            if (isValidTravel(slowest, fastest, rampRate)) {
+                editor.putInt(KEY_TRAVEL_SLOWEST, slowest)
+                        .putInt(KEY_TRAVEL_FASTEST, fastest)
+                        .putInt(KEY_TRAVEL_RAMP, rampRate);
+            } else {
+                Log.e(TAG, String.format("Rejecting travel profile %d/%d/%d, need 0 < fastest <= slowest and ramp > 0",
+                        slowest, fastest, rampRate));
+            }
+        }
+
+        editor.apply();
+
+        // apply() updates the in-memory store right away, the disk write happens later
+        Snapshot snapshot = Snapshot.fromStore(mConfigStore);
+        mSnapshot = snapshot;
+        for (Listener listener : mListeners) {
+            listener.onConfigChanged(snapshot);
+        }
+    }
+
+    /**
+     * A usable ramp: positive delays that speed up from slowest to fastest
+     */
+    static boolean isValidTravel(int slowest, int fastest, int rampRate) {
+        return (fastest > 0) && (fastest <= slowest) && (rampRate > 0);
     }
 
     private int getNumericParam(String key, HashMap<String, String> params) {
@@ -69,42 +229,42 @@ public class RobotConfig {
      * Return the forward right slop parameter
      */
     public int getSlopStepsRightFwd() {
-        return mConfigStore.getInt(KEY_SLOP_FWD_R, DEFAULT_SLOPSTEPS_RIGHTFWD);
+        return mSnapshot.slopStepsRightFwd;
     }
 
     /**
      * Return the backward right slop parameter
      */
     public int getSlopStepsRightBack() {
-        return mConfigStore.getInt(KEY_SLOP_BACK_R, DEFAULT_SLOPSTEPS_RIGHTBACK);
+        return mSnapshot.slopStepsRightBack;
     }
 
     /**
      * Return the forward left slop parameter
      */
     public int getSlopStepsLeftFwd() {
-        return mConfigStore.getInt(KEY_SLOP_FWD_L, DEFAULT_SLOPSTEPS_LEFTFWD);
+        return mSnapshot.slopStepsLeftFwd;
     }
 
     /**
      * Return the backward left slop parameter
      */
     public int getSlopStepsLeftBack() {
-        return mConfigStore.getInt(KEY_SLOP_BACK_L, DEFAULT_SLOPSTEPS_LEFTBACK);
+        return mSnapshot.slopStepsLeftBack;
     }
 
     /**
      * Return the right spacing adjust parameter
      */
     public int getSpacingAdjustRight() {
-        return mConfigStore.getInt(KEY_SPACING_R, DEFAULT_SPACINGADJUST_RIGHT);
+        return mSnapshot.spacingAdjustRight;
     }
 
     /**
      * Return the left spacing adjust parameter
      */
     public int getSpacingAdjustLeft() {
-        return mConfigStore.getInt(KEY_SPACING_L, DEFAULT_SPACINGADJUST_LEFT);
+        return mSnapshot.spacingAdjustLeft;
     }
 
     /**
@@ -112,11 +272,27 @@ public class RobotConfig {
      * @param pos motor id
      */
     public int getServoPos(int pos) {
-        String positionSet = mConfigStore.getString(KEY_SERVO_POS, DEFAULT_SERVOPOS);
-        String[] servoPos = TextUtils.split(positionSet, ",");
-        if ((pos < 0) || (pos >= servoPos.length)) {
-            return 0;
-        }
-        return Integer.valueOf(servoPos[pos]);
+        return mSnapshot.getServoPos(pos);
+    }
+
+    /**
+     * Return the slowest (starting) step delay for pen-up travel, in nanos
+     */
+    public int getTravelStepDelaySlowest() {
+        return mSnapshot.travelProfile.getStepDelaySlowest();
+    }
+
+    /**
+     * Return the fastest (cruise) step delay for pen-up travel, in nanos
+     */
+    public int getTravelStepDelayFastest() {
+        return mSnapshot.travelProfile.getStepDelayFastest();
+    }
+
+    /**
+     * Return the per-step ramp for pen-up travel, in nanos
+     */
+    public int getTravelRampRate() {
+        return mSnapshot.travelProfile.getRampRate();
     }
 }
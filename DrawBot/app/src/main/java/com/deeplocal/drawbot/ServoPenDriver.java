@@ -0,0 +1,30 @@
+package com.deeplocal.drawbot;
+
+import com.google.android.things.contrib.driver.pwmservo.Servo;
+
+import java.io.IOException;
+
+/**
+ * Pen servo on a PWM pin.
+ */
+public class ServoPenDriver implements PenDriver {
+
+    private Servo mServo;
+
+    public ServoPenDriver(String pwmPin) throws IOException {
+        mServo = new Servo(pwmPin);
+        mServo.setPulseDurationRange(1, 2); // according to your servo's specifications
+        mServo.setAngleRange(0, 180);       // according to your servo's specifications
+        mServo.setEnabled(true);
+    }
+
+    @Override
+    public void setAngle(double angle) throws IOException {
+        mServo.setAngle(angle);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServo.close();
+    }
+}
@@ -0,0 +1,161 @@
+package com.deeplocal.drawbot;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Records when each scheduled step actually finished against the interval that was asked for.
+ * Every array is allocated up front, so recording a step only writes primitives.
+ *
+ * Each move gets a histogram of how late its steps came out (25 us buckets), an overrun count and the
+ * worst gap; the last SAMPLES raw intervals are kept in a ring. dump() is for on-demand export from
+ * another thread and may catch the move in progress half updated.
+ */
+public class StepTimingRecorder {
+
+    private static final int MAX_MOVES = 256;           // recent moves kept
+    private static final int SAMPLES = 8192;            // recent raw steps kept, power of two
+    private static final int BUCKETS = 40;
+    private static final long BUCKET_NANOS = 25000;     // last bucket collects everything 975 us late or worse
+    private static final long OVERRUN_NANOS = 100000;   // later than this counts as an overrun
+
+    private static class InstanceHolder {
+        private static StepTimingRecorder mStepTimingRecorder = new StepTimingRecorder();
+    }
+
+    public static StepTimingRecorder getInstance() {
+        return InstanceHolder.mStepTimingRecorder;
+    }
+
+    private volatile boolean mEnabled = true;
+
+    // per move, indexed by move number % MAX_MOVES
+    private final int[][] mHistograms = new int[MAX_MOVES][BUCKETS];
+    private final int[] mSteps = new int[MAX_MOVES];
+    private final int[] mOverruns = new int[MAX_MOVES];
+    private final long[] mRequestedNanos = new long[MAX_MOVES];
+    private final long[] mActualNanos = new long[MAX_MOVES];
+    private final long[] mWorstGapNanos = new long[MAX_MOVES];
+    private final long[] mWorstLateNanos = new long[MAX_MOVES];
+
+    // raw intervals, indexed by sample number % SAMPLES
+    private final long[] mSampleRequested = new long[SAMPLES];
+    private final long[] mSampleActual = new long[SAMPLES];
+
+    private volatile long mMoveCount;
+    private volatile long mSampleCount;
+    private int mMove;
+    private long mLastStepEnd;
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Start a new move, the first step's interval counts from startNanos
+     */
+    public void beginMove(long startNanos) {
+
+        if (!mEnabled) {
+            return;
+        }
+
+        mMove = (int) (mMoveCount % MAX_MOVES);
+        int[] histogram = mHistograms[mMove];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = 0;
+        }
+        mSteps[mMove] = 0;
+        mOverruns[mMove] = 0;
+        mRequestedNanos[mMove] = 0;
+        mActualNanos[mMove] = 0;
+        mWorstGapNanos[mMove] = 0;
+        mWorstLateNanos[mMove] = 0;
+
+        mLastStepEnd = startNanos;
+        mMoveCount++;
+    }
+
+    /**
+     * A step asked to take requestedNanos finished at endNanos
+     */
+    public void recordStep(long requestedNanos, long endNanos) {
+
+        if (!mEnabled || (mMoveCount == 0)) {
+            return;
+        }
+
+        long actual = endNanos - mLastStepEnd;
+        mLastStepEnd = endNanos;
+
+        int sample = (int) (mSampleCount & (SAMPLES - 1));
+        mSampleRequested[sample] = requestedNanos;
+        mSampleActual[sample] = actual;
+        mSampleCount++;
+
+        long late = actual - requestedNanos;
+        int bucket = (late <= 0) ? 0 : (int) Math.min(late / BUCKET_NANOS, BUCKETS - 1);
+        mHistograms[mMove][bucket]++;
+
+        mSteps[mMove]++;
+        mRequestedNanos[mMove] += requestedNanos;
+        mActualNanos[mMove] += actual;
+        if (late > OVERRUN_NANOS) {
+            mOverruns[mMove]++;
+        }
+        if (actual > mWorstGapNanos[mMove]) {
+            mWorstGapNanos[mMove] = actual;
+        }
+        if (late > mWorstLateNanos[mMove]) {
+            mWorstLateNanos[mMove] = late;
+        }
+    }
+
+    public void reset() {
+        mMoveCount = 0;
+        mSampleCount = 0;
+    }
+
+    /**
+     * Write per-move summaries and histograms, then the recent raw intervals, as plain text
+     */
+    public void dump(File file) throws IOException {
+
+        long moveCount = mMoveCount;
+        long sampleCount = mSampleCount;
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+
+            out.println("# move steps requested_us actual_us overruns worst_gap_us worst_late_us histogram("
+                    + BUCKET_NANOS / 1000 + "us buckets of lateness)");
+
+            for (long move = Math.max(0, moveCount - MAX_MOVES); move < moveCount; move++) {
+
+                int m = (int) (move % MAX_MOVES);
+                StringBuilder sb = new StringBuilder();
+                sb.append(move).append(' ').append(mSteps[m])
+                        .append(' ').append(mRequestedNanos[m] / 1000)
+                        .append(' ').append(mActualNanos[m] / 1000)
+                        .append(' ').append(mOverruns[m])
+                        .append(' ').append(mWorstGapNanos[m] / 1000)
+                        .append(' ').append(mWorstLateNanos[m] / 1000);
+                for (int i = 0; i < BUCKETS; i++) {
+                    sb.append(i == 0 ? " " : ",").append(mHistograms[m][i]);
+                }
+                out.println(sb.toString());
+            }
+
+            out.println("# sample requested_ns actual_ns");
+            for (long sample = Math.max(0, sampleCount - SAMPLES); sample < sampleCount; sample++) {
+                int s = (int) (sample & (SAMPLES - 1));
+                out.println(sample + " " + mSampleRequested[s] + " " + mSampleActual[s]);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.Direction;
+import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
+import com.polidea.androidthings.driver.uln2003.driver.ULN2003Resolution;
+
+/**
+ * One wheel stepper, as used by {@link MovementControl}.
+ */
+public interface StepperDriver {
+
+    void setDirection(Direction direction);
+
+    void setResolution(ULN2003Resolution resolution);
+
+    /**
+     * Advance the coil sequence by one step and hold for the step duration
+     */
+    void performStep(StepDuration stepDuration);
+
+    void close();
+}
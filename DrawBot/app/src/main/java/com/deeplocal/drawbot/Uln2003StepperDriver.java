@@ -0,0 +1,39 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.Direction;
+import com.polidea.androidthings.driver.steppermotor.driver.StepDuration;
+import com.polidea.androidthings.driver.uln2003.driver.ULN2003;
+import com.polidea.androidthings.driver.uln2003.driver.ULN2003Resolution;
+
+/**
+ * Stepper on a ULN2003 board wired to four GPIO pins.
+ */
+public class Uln2003StepperDriver implements StepperDriver {
+
+    private ULN2003 mStepper;
+
+    public Uln2003StepperDriver(String[] pins) {
+        mStepper = new ULN2003(pins[0], pins[1], pins[2], pins[3]);
+        mStepper.open();
+    }
+
+    @Override
+    public void setDirection(Direction direction) {
+        mStepper.setDirection(direction);
+    }
+
+    @Override
+    public void setResolution(ULN2003Resolution resolution) {
+        mStepper.setResolution(resolution);
+    }
+
+    @Override
+    public void performStep(StepDuration stepDuration) {
+        mStepper.performStep(stepDuration);
+    }
+
+    @Override
+    public void close() {
+        mStepper.close();
+    }
+}
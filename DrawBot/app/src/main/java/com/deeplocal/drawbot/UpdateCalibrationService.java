@@ -88,6 +88,14 @@ public class UpdateCalibrationService extends IntentService {
             }
             tuningParams.put(RobotConfig.KEY_SERVO_POS, tempServoPos);
 
+            // add pen-up travel profile to hashmap, if present
+            JSONObject travel = json.optJSONObject("travel");
+            if (travel != null) {
+                tuningParams.put(RobotConfig.KEY_TRAVEL_SLOWEST, travel.getString("slowest"));
+                tuningParams.put(RobotConfig.KEY_TRAVEL_FASTEST, travel.getString("fastest"));
+                tuningParams.put(RobotConfig.KEY_TRAVEL_RAMP, travel.getString("rampRate"));
+            }
+
             // update tuning params
             RobotConfig.getInstance(getApplicationContext()).updateCalibration(tuningParams);
 
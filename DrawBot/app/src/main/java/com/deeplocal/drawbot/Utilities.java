@@ -4,7 +4,6 @@ import android.content.Context;
 import android.util.Log;
 
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.objdetect.CascadeClassifier;
@@ -13,34 +12,45 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 
 public class Utilities {
 
     private static final String TAG = "abc";
 
-     public static Mat streamToMat(InputStream stream) throws IOException {
-        byte[] data = new byte[1024];
-        MatOfByte chunk = new MatOfByte();
-        MatOfByte buf = new MatOfByte();
-        int read;
-        while ((read = stream.read(data)) > 0) {
-            chunk.fromArray(data);
-            Mat subchunk = chunk.submat(0, read, 0, 1);
-            buf.push_back(subchunk);
+    /*
+     * Bulk read a CV_8UC1 image into buffer, growing it if it is too small.
+     * Returns the buffer that holds the pixels.
+     */
+    public static byte[] readGrayPixels(Mat grayMat, byte[] buffer) {
+
+        int count = (int) grayMat.total();
+        if ((buffer == null) || (buffer.length < count)) {
+            buffer = new byte[count];
+        }
+
+        Mat source = grayMat.isContinuous() ? grayMat : grayMat.clone();
+        source.get(0, 0, buffer);
+        if (source != grayMat) {
+            source.release();
         }
-        return buf;
+
+        return buffer;
     }
 
     public static CascadeClassifier loadFaceClassifier(Context c) {
+        return loadCascadeClassifier(c, R.raw.lbpcascade_frontalface);
+    }
+
+    // the extracted xml is left in place, FaceClassifierCache keeps the parsed classifier
+    public static CascadeClassifier loadCascadeClassifier(Context c, int rawResId) {
 
         CascadeClassifier classifier;
 
         try {
 
-            InputStream is = c.getResources().openRawResource(R.raw.lbpcascade_frontalface);
+            InputStream is = c.getResources().openRawResource(rawResId);
             File cascadeDir = c.getDir("cascade", Context.MODE_PRIVATE);
-            File cascadeFile = new File(cascadeDir, "lbpcascade_frontalface.xml");
+            File cascadeFile = new File(cascadeDir, String.format("cascade-%d.xml", rawResId));
             FileOutputStream os = new FileOutputStream(cascadeFile);
 
             byte[] buffer = new byte[4096];
@@ -53,8 +63,6 @@ public class Utilities {
 
             classifier = new CascadeClassifier(cascadeFile.getAbsolutePath());
 
-            cascadeDir.delete();
-
             if (!classifier.empty()) {
                 Log.d(TAG, "Loaded face classifier");
                 return classifier;
@@ -94,10 +102,14 @@ public class Utilities {
     // https://www.mathsisfun.com/algebra/trig-cosine-law.html
     // https://stackoverflow.com/questions/22668659/calculate-on-which-side-of-a-line-a-point-is
     public static double calcDegrees(Point p1, Point p2, Point p3) {
+        return calcDegrees(p1.x, p1.y, p2.x, p2.y, p3.x, p3.y);
+    }
+
+    public static double calcDegrees(double x1, double y1, double x2, double y2, double x3, double y3) {
 
-        double lenA = Math.sqrt(Math.pow((p1.x - p2.x), 2) + Math.pow((p1.y - p2.y), 2));
-        double lenB = Math.sqrt(Math.pow((p2.x - p3.x), 2) + Math.pow((p2.y - p3.y), 2));
-        double lenC = Math.sqrt(Math.pow((p1.x - p3.x), 2) + Math.pow((p1.y - p3.y), 2));
+        double lenA = Math.sqrt(Math.pow((x1 - x2), 2) + Math.pow((y1 - y2), 2));
+        double lenB = Math.sqrt(Math.pow((x2 - x3), 2) + Math.pow((y2 - y3), 2));
+        double lenC = Math.sqrt(Math.pow((x1 - x3), 2) + Math.pow((y1 - y3), 2));
 
         double val = (Math.pow(lenA, 2) + Math.pow(lenB, 2) - Math.pow(lenC, 2)) / (2d * lenA * lenB);
         double rad = Math.acos(val);
@@ -106,7 +118,7 @@ public class Utilities {
 
         double turnDegrees = 180 - deg;
 
-        double leftOrRight = (p2.x - p1.x) * (p3.y - p1.y) - (p3.x - p1.x) * (p2.y - p1.y);
+        double leftOrRight = (x2 - x1) * (y3 - y1) - (x3 - x1) * (y2 - y1);
         if (leftOrRight < 0) {
 //            Log.d(TAG, "Point to left of line");
             turnDegrees *= -1;
@@ -120,26 +132,24 @@ public class Utilities {
         return turnDegrees;
     }
 
-    public static void printLineList(String startString, ArrayList<Line> lines, String endString) {
+    public static void printLineList(String startString, LinePlan lines, String endString) {
         Log.d(TAG, startString);
 
         for (int i = 0; i < lines.size(); i++) {
-            Log.d(TAG, String.format("Line %d: %s", i + 1, lines.get(i).toString()));
+            Log.d(TAG, String.format("Line %d: %s", i + 1, lines.getLine(i).toString()));
         }
         Log.d(TAG, endString);
     }
 
-    public static String toJsonString(ArrayList<Line> lines) {
-        String s = "{\"lines\":[";
+    public static String toJsonString(LinePlan lines) {
+        StringBuilder s = new StringBuilder("{\"lines\":[");
         for (int i = 0; i < lines.size(); i++) {
-            Point from = lines.get(i).getPoint1();
-            Point to = lines.get(i).getPoint2();
-            s += String.format("{\"from\":[%d,%d],\"to\":[%d,%d],\"weight\":%d}", (int) from.x, (int) from.y, (int) to.x, (int) to.y, lines.get(i).getThickness());
+            s.append(String.format("{\"from\":[%d,%d],\"to\":[%d,%d],\"weight\":%d}", lines.getX1(i), lines.getY1(i), lines.getX2(i), lines.getY2(i), lines.getWeight(i)));
             if (i < (lines.size() - 1)) {
-                s += ",";
+                s.append(",");
             }
         }
-        s += "]}";
-        return s;
+        s.append("]}");
+        return s.toString();
     }
 }
@@ -0,0 +1,25 @@
+package com.deeplocal.drawbot;
+
+/**
+ * Clock that advances instantly when asked to sleep, for running moves faster than real time.
+ */
+public class VirtualClock implements MotionClock {
+
+    private long mNanos;
+
+    @Override
+    public long nanoTime() {
+        return mNanos;
+    }
+
+    @Override
+    public void sleepNanos(long nanos) {
+        if (nanos > 0) {
+            mNanos += nanos;
+        }
+    }
+
+    public void reset() {
+        mNanos = 0;
+    }
+}
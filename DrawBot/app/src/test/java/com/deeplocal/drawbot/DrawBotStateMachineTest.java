@@ -0,0 +1,233 @@
+package com.deeplocal.drawbot;
+
+import android.graphics.Color;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives the state machine headless with synthetic events, a stub Actions and a virtual clock.
+ */
+public class DrawBotStateMachineTest {
+
+    private static final long MILLIS = 1000000;
+
+    private static class StubActions implements DrawBotStateMachine.Actions {
+
+        boolean hasPlan;
+        int pictures;
+        int drawings;
+        int cancelledDrawings;
+        int cancelledCaptures;
+        int led;
+
+        @Override
+        public boolean takePicture() {
+            pictures++;
+            return true;
+        }
+
+        @Override
+        public boolean startDrawing() {
+            drawings++;
+            hasPlan = false;
+            return true;
+        }
+
+        @Override
+        public void cancelDrawing() {
+            cancelledDrawings++;
+        }
+
+        @Override
+        public void cancelCapture() {
+            cancelledCaptures++;
+        }
+
+        @Override
+        public boolean hasWaitingPlan() {
+            return hasPlan;
+        }
+
+        @Override
+        public void writeLED(int color) {
+            led = color;
+        }
+
+        @Override
+        public void flashSetupPress() {
+        }
+
+        @Override
+        public void showDrawMode(DrawBotStateMachine.DrawMode drawMode, int finalColor) {
+            led = finalColor;
+        }
+
+        @Override
+        public void queueTest(DrawBotStateMachine.DrawMode drawMode) {
+            hasPlan = true;
+        }
+
+        @Override
+        public void info(String text) {
+        }
+    }
+
+    private VirtualClock mClock;
+    private StubActions mActions;
+    private DrawBotStateMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        mActions = new StubActions();
+        mMachine = new DrawBotStateMachine(mActions, mClock);
+    }
+
+    @Test
+    public void setupEndsInNormalMode() {
+
+        click();
+        advance(5000);
+
+        assertEquals(DrawBotStateMachine.DrawMode.NORMAL, mMachine.getDrawMode());
+        assertEquals(DrawBotStateMachine.State.NO_PHOTO, mMachine.getState());
+        assertEquals(Color.RED, mActions.led);
+    }
+
+    @Test
+    public void photoCountdownAndDrawing() {
+
+        startDrawing();
+
+        assertEquals(1, mActions.pictures);
+        assertEquals(1, mActions.drawings);
+        assertEquals(DrawBotStateMachine.State.DRAWING, mMachine.getState());
+        assertEquals(Color.BLUE, mActions.led);
+
+        mMachine.post(DrawBotStateMachine.EventType.DRAW_DONE, false);
+        mMachine.drain();
+        assertEquals(DrawBotStateMachine.State.NO_PHOTO, mMachine.getState());
+    }
+
+    @Test
+    public void longPressWithAPlanWaitingTakesTheNextPhoto() {
+
+        takePhoto();
+
+        // press, bounce open and closed again within the debounce window, then keep holding
+        edge(true);
+        advance(2);
+        edge(false);
+        advance(2);
+        edge(true);
+        advance(1000);
+
+        assertEquals(2, mActions.pictures);
+        assertEquals(DrawBotStateMachine.State.WAITING_TO_DRAW, mMachine.getState());
+
+        // the waiting plan is still drawn on the next short press
+        edge(false);
+        advance(400);
+        click();
+        advance(400);
+        assertEquals(DrawBotStateMachine.State.COUNTDOWN, mMachine.getState());
+        assertEquals(2, mActions.pictures);
+    }
+
+    @Test
+    public void pressCancelsDrawingRightAway() {
+
+        startDrawing();
+
+        // cancelled on the press edge, the bounce and release that follow change nothing
+        edge(true);
+        assertEquals(1, mActions.cancelledDrawings);
+        assertEquals(DrawBotStateMachine.State.NO_PHOTO, mMachine.getState());
+
+        advance(2);
+        edge(false);
+        advance(2);
+        edge(true);
+        advance(1000);
+        edge(false);
+        advance(400);
+
+        assertEquals(1, mActions.cancelledDrawings);
+        assertEquals(1, mActions.pictures);
+        assertEquals(DrawBotStateMachine.State.NO_PHOTO, mMachine.getState());
+    }
+
+    @Test
+    public void cancelWhileProcessingDropsTheCapture() {
+
+        click();
+        advance(5000);
+        click();
+        assertEquals(DrawBotStateMachine.State.PROCESSING_PHOTO, mMachine.getState());
+
+        advance(400);
+        click();
+
+        assertEquals(1, mActions.cancelledCaptures);
+        assertEquals(DrawBotStateMachine.State.NO_PHOTO, mMachine.getState());
+    }
+
+    @Test
+    public void buttonLatencyIsMeasuredFromPosting() {
+
+        mMachine.post(DrawBotStateMachine.EventType.BUTTON_EDGE, true);
+        mClock.sleepNanos(5 * MILLIS);
+        mMachine.drain();
+
+        assertEquals(1, mMachine.getEventCount(DrawBotStateMachine.EventType.BUTTON_EDGE));
+        assertEquals(5 * MILLIS, mMachine.getMeanLatencyNanos(DrawBotStateMachine.EventType.BUTTON_EDGE));
+        assertEquals(5 * MILLIS, mMachine.getMaxLatencyNanos(DrawBotStateMachine.EventType.BUTTON_EDGE));
+    }
+
+    // setup, photo, plan: leaves a plan waiting
+    private void takePhoto() {
+
+        click();
+        advance(5000);
+        click();
+
+        mActions.hasPlan = true;
+        mMachine.post(DrawBotStateMachine.EventType.PLAN_READY, true);
+        mMachine.drain();
+        assertEquals(DrawBotStateMachine.State.WAITING_TO_DRAW, mMachine.getState());
+        advance(400);
+    }
+
+    // photo, then a short press and the countdown: leaves the robot drawing
+    private void startDrawing() {
+
+        takePhoto();
+
+        // the countdown starts once the press is known to be short
+        click();
+        advance(400);
+        assertEquals(DrawBotStateMachine.State.COUNTDOWN, mMachine.getState());
+        assertEquals(Color.MAGENTA, mActions.led);
+        advance(3000);
+        advance(400);
+    }
+
+    private void click() {
+        edge(true);
+        advance(50);
+        edge(false);
+    }
+
+    private void edge(boolean pressed) {
+        mMachine.post(DrawBotStateMachine.EventType.BUTTON_EDGE, pressed);
+        mMachine.drain();
+    }
+
+    private void advance(long millis) {
+        mClock.sleepNanos(millis * MILLIS);
+        mMachine.drain();
+    }
+}
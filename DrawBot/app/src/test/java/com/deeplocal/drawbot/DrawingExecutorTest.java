@@ -0,0 +1,170 @@
+package com.deeplocal.drawbot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Draws on a real motion thread against the recording drivers and a virtual clock, pausing and
+ * cancelling from the test thread the way the state machine would.
+ */
+public class DrawingExecutorTest {
+
+    private static final double DRAW_SCALE = 4;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    // pen writes after setUp: drop for line 1, lift for the turn, drop for line 2
+    private static final int PAUSE_ON_WRITE = 3;
+
+    /**
+     * Pauses the executor from the motion thread when the pen drops for the second line,
+     * and reports the lift that the pause causes before the next turn.
+     */
+    private static class PausingPen extends RecordingPenDriver {
+
+        final CountDownLatch lifted = new CountDownLatch(1);
+        DrawingExecutor executor;
+
+        PausingPen(MotionClock clock) {
+            super(clock);
+        }
+
+        @Override
+        public void setAngle(double angle) {
+            super.setAngle(angle);
+            if (executor == null) {
+                return;
+            }
+            if (getWriteCount() == PAUSE_ON_WRITE) {
+                executor.pause();
+            } else if (getWriteCount() == PAUSE_ON_WRITE + 1) {
+                lifted.countDown();
+            }
+        }
+    }
+
+    private static class Robot implements DrawingExecutor.Listener {
+
+        final VirtualClock clock = new VirtualClock();
+        final RecordingStepperDriver leftStepper = new RecordingStepperDriver(clock);
+        final RecordingStepperDriver rightStepper = new RecordingStepperDriver(clock);
+        final PausingPen pen = new PausingPen(clock);
+        final MotionThread motionThread = new MotionThread();
+        final DrawingExecutor executor;
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile boolean cancelled;
+
+        Robot() {
+            RobotConfig.Snapshot config = RobotConfig.Snapshot.defaults();
+            MovementControl movementControl = new MovementControl(config, leftStepper, rightStepper, pen, clock);
+            LineExecutor lineExecutor = new LineExecutor(movementControl,
+                    new PhysicalInterface(new RecordingLedDriver(clock)), config, DRAW_SCALE, LineExecutor.Mode.PIVOT);
+            executor = new DrawingExecutor(motionThread, lineExecutor, movementControl);
+            executor.setListener(this);
+            pen.reset();
+            motionThread.start();
+        }
+
+        @Override
+        public void onDrawingFinished(boolean cancelled) {
+            this.cancelled = cancelled;
+            finished.countDown();
+        }
+
+        long totalSteps() {
+            return leftStepper.getTotalSteps() + rightStepper.getTotalSteps();
+        }
+
+        double lastPenAngle() {
+            return pen.getAngle(pen.getWriteCount() - 1);
+        }
+
+        void awaitFinished() throws InterruptedException {
+            assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    // three 40 mm sides of a square, every corner a pivot
+    private LinePlan mPlan;
+    private double mPenUpAngle;
+    private Robot mRobot;
+
+    @Before
+    public void setUp() {
+        mPlan = new LinePlan();
+        mPlan.add(0, 0, 10, 0, 1);
+        mPlan.add(10, 0, 10, 10, 1);
+        mPlan.add(10, 10, 0, 10, 1);
+        mPenUpAngle = RobotConfig.Snapshot.defaults().getServoPos(0);
+    }
+
+    @After
+    public void tearDown() {
+        if (mRobot != null) {
+            mRobot.motionThread.quit();
+        }
+    }
+
+    @Test
+    public void pauseHoldsThePoseAndResumeFinishesThePlan() throws InterruptedException {
+
+        Robot unpaused = new Robot();
+        assertTrue(unpaused.executor.start(mPlan, LineExecutor.Mode.PIVOT));
+        unpaused.awaitFinished();
+        unpaused.motionThread.quit();
+
+        mRobot = new Robot();
+        mRobot.pen.executor = mRobot.executor;
+        assertTrue(mRobot.executor.start(mPlan, LineExecutor.Mode.PIVOT));
+        assertTrue(mRobot.pen.lifted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // paused after the second line with the pen up, nothing moves until resume
+        long pausedSteps = mRobot.totalSteps();
+        assertTrue(mRobot.executor.isPaused());
+        assertEquals(1, mRobot.executor.getCursor());
+        assertEquals(1, mRobot.executor.getCompletedLines());
+        assertEquals(1f / 3, mRobot.executor.getProgress(), 0.0001f);
+        assertEquals(mPenUpAngle, mRobot.lastPenAngle(), 0);
+        assertEquals(1, mRobot.finished.getCount());
+        assertEquals(pausedSteps, mRobot.totalSteps());
+
+        mRobot.executor.resume();
+        mRobot.awaitFinished();
+
+        // the pause only moved the pen lift ahead of the turn, which lifts it anyway
+        assertFalse(mRobot.cancelled);
+        assertFalse(mRobot.executor.isPaused());
+        assertEquals(1f, mRobot.executor.getProgress(), 0);
+        assertEquals(unpaused.leftStepper.getTotalSteps(), mRobot.leftStepper.getTotalSteps());
+        assertEquals(unpaused.rightStepper.getTotalSteps(), mRobot.rightStepper.getTotalSteps());
+        assertEquals(unpaused.pen.getWriteCount(), mRobot.pen.getWriteCount());
+        assertEquals(mPenUpAngle, mRobot.lastPenAngle(), 0);
+    }
+
+    @Test
+    public void cancelWhilePausedStopsWithoutMoving() throws InterruptedException {
+
+        mRobot = new Robot();
+        mRobot.pen.executor = mRobot.executor;
+        assertTrue(mRobot.executor.start(mPlan, LineExecutor.Mode.PIVOT));
+        assertTrue(mRobot.pen.lifted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long pausedSteps = mRobot.totalSteps();
+
+        mRobot.executor.cancel();
+        mRobot.awaitFinished();
+
+        assertTrue(mRobot.cancelled);
+        assertFalse(mRobot.executor.isRunning());
+        assertEquals(1, mRobot.executor.getCompletedLines());
+        assertEquals(pausedSteps, mRobot.totalSteps());
+        assertEquals(mPenUpAngle, mRobot.lastPenAngle(), 0);
+    }
+}
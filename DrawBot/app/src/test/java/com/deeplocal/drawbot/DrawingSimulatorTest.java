@@ -0,0 +1,105 @@
+package com.deeplocal.drawbot;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a small serpentine through the simulator with the built-in calibration, no Android needed.
+ */
+public class DrawingSimulatorTest {
+
+    private static final double DRAW_SCALE = 4;
+
+    // three 100 mm rows joined by two 12 mm pen-up connectors, turning right then left
+    private LinePlan mPlan;
+
+    // the default calibration takes up 3 + 12 slop steps on the inner wheel of every turn
+    private static final int SLOP_PER_TURN = 3 + 12;
+
+    private static final int ROW_STEPS = (int) (100 * MovementControl.STEPS_PER_MM);
+    private static final int CONNECTOR_STEPS = (int) (12 * MovementControl.STEPS_PER_MM);
+    private static final int QUARTER_TURN_STEPS = (int) (90 * MovementControl.STEPS_PER_DEG * 2);
+
+    @Before
+    public void setUp() {
+        mPlan = new LinePlan();
+        mPlan.add(0, 0, 25, 0, 1);
+        mPlan.add(25, 0, 25, 3, 0);
+        mPlan.add(25, 3, 0, 3, 1);
+        mPlan.add(0, 3, 0, 6, 0);
+        mPlan.add(0, 6, 25, 6, 1);
+    }
+
+    @Test
+    public void reverseDriveSidestepsEachConnector() {
+
+        DrawingSimulator simulator = new DrawingSimulator(RobotConfig.Snapshot.defaults(), DRAW_SCALE,
+                LineExecutor.Mode.REVERSE_DRIVE);
+        DrawingEstimate estimate = simulator.simulate(mPlan);
+
+        // each sidestep is a quarter turn out, the connector, and a quarter turn back,
+        // then both wheels take up slop for the new direction: backwards after the first, forwards after the second
+        long wheelSteps = 3 * ROW_STEPS + 2 * (2 * QUARTER_TURN_STEPS + CONNECTOR_STEPS + SLOP_PER_TURN) + SLOP_PER_TURN;
+        assertEquals(5, estimate.segments);
+        assertEquals(4, estimate.turns);
+        assertEquals(6 * SLOP_PER_TURN, estimate.slopSteps);
+        assertEquals(wheelSteps, estimate.leftSteps);
+        assertEquals(wheelSteps, estimate.rightSteps);
+
+        // the quarter turns inside the sidesteps count as turning, not as travel
+        assertEquals(estimate.totalNanos, estimate.drawingNanos + estimate.travelNanos + estimate.turningNanos);
+        assertTrue(estimate.turningNanos > estimate.travelNanos);
+    }
+
+    @Test
+    public void reverseDriveTakesUpSlopOnBothWheelsWhenTheRowFlips() {
+
+        // slop steps R fwd/back, L fwd/back, all different so each wheel's share shows
+        RobotConfig.Snapshot config = new RobotConfig.Snapshot(12, 3, 10, 5, 0, 0, new int[] {115, 105, 80, 65},
+                3000000, 350000, 40000);
+        DrawingSimulator simulator = new DrawingSimulator(config, DRAW_SCALE, LineExecutor.Mode.REVERSE_DRIVE);
+
+        LinePlan plan = new LinePlan();
+        plan.add(0, 0, 25, 0, 1);
+        plan.add(25, 0, 25, 3, 0);
+        plan.add(25, 3, 0, 3, 1);
+        DrawingEstimate estimate = simulator.simulate(plan);
+
+        // right quarter turn out (right wheel), left quarter turn back (left wheel), then both wheels backwards
+        long moves = 2 * ROW_STEPS + 2 * QUARTER_TURN_STEPS + CONNECTOR_STEPS;
+        assertEquals(moves + (3 + 12) + 3, estimate.rightSteps);
+        assertEquals(moves + (5 + 10) + 5, estimate.leftSteps);
+        assertEquals((3 + 12) + (5 + 10) + 3 + 5, estimate.slopSteps);
+        assertEquals(2, estimate.turns);
+    }
+
+    @Test
+    public void pivotTurnsAtEveryCorner() {
+
+        DrawingSimulator simulator = new DrawingSimulator(RobotConfig.Snapshot.defaults(), DRAW_SCALE,
+                LineExecutor.Mode.PIVOT);
+        DrawingEstimate estimate = simulator.simulate(mPlan);
+
+        // two right turns then two left turns, each wheel takes up slop twice
+        long wheelSteps = 3 * ROW_STEPS + 2 * CONNECTOR_STEPS + 4 * QUARTER_TURN_STEPS + 2 * SLOP_PER_TURN;
+        assertEquals(4, estimate.turns);
+        assertEquals(4 * SLOP_PER_TURN, estimate.slopSteps);
+        assertEquals(wheelSteps, estimate.leftSteps);
+        assertEquals(wheelSteps, estimate.rightSteps);
+        assertEquals(estimate.totalNanos, estimate.drawingNanos + estimate.travelNanos + estimate.turningNanos);
+    }
+
+    @Test
+    public void repeatedRunsGiveTheSameEstimate() {
+
+        DrawingSimulator simulator = new DrawingSimulator(RobotConfig.Snapshot.defaults(), DRAW_SCALE,
+                LineExecutor.Mode.REVERSE_DRIVE);
+
+        long first = simulator.simulate(mPlan).totalNanos;
+        long second = simulator.simulate(mPlan).totalNanos;
+        assertEquals(first, second);
+    }
+}
@@ -0,0 +1,101 @@
+package com.deeplocal.drawbot;
+
+import com.polidea.androidthings.driver.steppermotor.Direction;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves against the recording drivers and a virtual clock, so step counts and timing can be checked off-device.
+ */
+public class MovementControlTest {
+
+    private static final long SETTLE_NANOS = 200000000;
+
+    private VirtualClock mClock;
+    private RecordingStepperDriver mLeftStepper;
+    private RecordingStepperDriver mRightStepper;
+    private RecordingPenDriver mPen;
+    private MovementControl mMovementControl;
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        mLeftStepper = new RecordingStepperDriver(mClock);
+        mRightStepper = new RecordingStepperDriver(mClock);
+        mPen = new RecordingPenDriver(mClock);
+        mMovementControl = new MovementControl(RobotConfig.Snapshot.defaults(), mLeftStepper, mRightStepper, mPen, mClock);
+
+        // start from a settled pen and a zero clock
+        mMovementControl.resetCounters();
+        mPen.reset();
+        mClock.reset();
+    }
+
+    @Test
+    public void moveStraightStepsBothWheelsForward() {
+
+        mMovementControl.moveStraight(100);
+
+        int steps = (int) (100 * MovementControl.STEPS_PER_MM);
+        assertEquals(steps, mLeftStepper.getCounterClockwiseSteps());
+        assertEquals(0, mLeftStepper.getClockwiseSteps());
+        assertEquals(steps, mRightStepper.getClockwiseSteps());
+        assertEquals(0, mRightStepper.getCounterClockwiseSteps());
+    }
+
+    @Test
+    public void moveStraightTakesItsTickTime() {
+
+        mMovementControl.moveStraight(100);
+
+        // every tick is held between the cruise and the starting delay
+        int steps = (int) (100 * MovementControl.STEPS_PER_MM);
+        long elapsed = mClock.nanoTime();
+        assertEquals(mMovementControl.getTickNanos(), elapsed);
+        assertTrue(elapsed >= steps * 500000L);
+        assertTrue(elapsed <= steps * 4000000L);
+    }
+
+    @Test
+    public void negativeDistanceDrivesBackwards() {
+
+        mMovementControl.moveStraight(-50);
+
+        int steps = (int) (50 * MovementControl.STEPS_PER_MM);
+        assertEquals(steps, mLeftStepper.getClockwiseSteps());
+        assertEquals(steps, mRightStepper.getCounterClockwiseSteps());
+    }
+
+    @Test
+    public void rightTurnTakesUpSlopOnTheRightWheel() {
+
+        mMovementControl.turn(90);
+
+        RobotConfig.Snapshot config = RobotConfig.Snapshot.defaults();
+        int steps = (int) (90 * MovementControl.STEPS_PER_DEG * 2);
+        assertEquals(1, mMovementControl.getTurnCount());
+        assertEquals(steps, mLeftStepper.getTotalSteps());
+        assertEquals(steps + config.slopStepsRightBack + config.slopStepsRightFwd, mRightStepper.getTotalSteps());
+        assertEquals(config.slopStepsRightBack + config.slopStepsRightFwd, mMovementControl.getSlopStepCount());
+        assertEquals(Direction.CLOCKWISE, mRightStepper.getDirection());
+
+        // four settle pauses around the slop and pivot phases
+        assertEquals(4 * SETTLE_NANOS + mMovementControl.getTickNanos(), mClock.nanoTime());
+    }
+
+    @Test
+    public void penWritesOnlyWhenTheAngleChanges() {
+
+        mMovementControl.setMarkerPressure(1);
+        mMovementControl.setMarkerPressure(1);
+        mMovementControl.setMarkerPressure(0);
+
+        assertEquals(2, mPen.getWriteCount());
+        assertEquals(2, mMovementControl.getPenState().getIssuedCount());
+        assertEquals(1, mMovementControl.getPenState().getSuppressedCount());
+    }
+}
@@ -0,0 +1,33 @@
+package com.deeplocal.drawbot;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RobotConfigTest {
+
+    private static final int[] SERVO_POSITIONS = {115, 105, 80, 65};
+
+    @Test
+    public void travelProfileNeedsPositiveSpeedingUpDelays() {
+        assertTrue(RobotConfig.isValidTravel(3000000, 350000, 40000));
+        assertTrue(RobotConfig.isValidTravel(350000, 350000, 40000));
+        assertFalse(RobotConfig.isValidTravel(3000000, 0, 40000));
+        assertFalse(RobotConfig.isValidTravel(3000000, -1, 40000));
+        assertFalse(RobotConfig.isValidTravel(300000, 350000, 40000));
+        assertFalse(RobotConfig.isValidTravel(3000000, 350000, 0));
+    }
+
+    @Test
+    public void badTravelProfileFallsBackToDefaults() {
+
+        RobotConfig.Snapshot snapshot = new RobotConfig.Snapshot(12, 3, 12, 3, 0, 0, SERVO_POSITIONS, 3000000, 0, 40000);
+        MotionProfile defaults = RobotConfig.Snapshot.defaults().travelProfile;
+
+        assertEquals(defaults.getStepDelayFastest(), snapshot.travelProfile.getStepDelayFastest());
+        assertEquals(defaults.getRampRate(), snapshot.travelProfile.getRampRate());
+        assertTrue(snapshot.travelProfile.getDelay(snapshot.travelProfile.getRampSteps()) > 0);
+    }
+}